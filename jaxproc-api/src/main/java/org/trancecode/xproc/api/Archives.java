@@ -0,0 +1,317 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Utility methods to read documents from compressed files and archives.
+ * 
+ * @author Herve Quiroz
+ */
+final class Archives
+{
+    public static final String GZIP_SUFFIX = ".gz";
+    public static final String ZIP_SUFFIX = ".zip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Archives()
+    {
+        // No instantiation
+    }
+
+    public static boolean isGzipFile(final File file)
+    {
+        return file.getName().endsWith(GZIP_SUFFIX);
+    }
+
+    public static boolean isZipFile(final File file)
+    {
+        return file.getName().endsWith(ZIP_SUFFIX);
+    }
+
+    /**
+     * Returns the local file of a {@code file:} URI if it is a gzip file or a
+     * zip archive, or else {@code null}.
+     */
+    public static File getCompressedFile(final URI resource)
+    {
+        if (!"file".equals(resource.getScheme()) || resource.isOpaque() || resource.getAuthority() != null
+                || resource.getQuery() != null || resource.getFragment() != null)
+        {
+            return null;
+        }
+
+        final File file = new File(resource);
+        if (isGzipFile(file) || isZipFile(file))
+        {
+            return file;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the documents of a file: the decompressed document for a gzip
+     * file, one document per entry for a zip archive, or else the file itself.
+     * Files are only opened when the sequence is iterated.
+     */
+    public static Iterable<Source> getSources(final File file)
+    {
+        if (isZipFile(file))
+        {
+            return getZipEntrySources(file);
+        }
+
+        if (isGzipFile(file))
+        {
+            return new Iterable<Source>()
+            {
+                @Override
+                public Iterator<Source> iterator()
+                {
+                    return Collections.singleton(getGzipSource(file)).iterator();
+                }
+            };
+        }
+
+        return Collections.<Source> singleton(new StreamSource(file));
+    }
+
+    public static Source getGzipSource(final File file)
+    {
+        final Source source = new StreamSource(new LazyInputStream()
+        {
+            @Override
+            protected InputStream open() throws IOException
+            {
+                final InputStream input = new FileInputStream(file);
+                try
+                {
+                    return new GZIPInputStream(input, BUFFER_SIZE);
+                }
+                catch (final IOException e)
+                {
+                    input.close();
+                    throw e;
+                }
+            }
+        });
+        source.setSystemId(file.toURI().toString());
+        return source;
+    }
+
+    /**
+     * Returns one document per entry of a zip archive. The archive is opened
+     * once per iteration of the sequence, and closed once the sequence has
+     * been fully iterated and the documents that were being read are closed.
+     * Documents read after that open the archive again.
+     */
+    public static Iterable<Source> getZipEntrySources(final File file)
+    {
+        return new Iterable<Source>()
+        {
+            @Override
+            public Iterator<Source> iterator()
+            {
+                final URI archiveUri = file.toURI();
+                final ZipArchive archive = new ZipArchive(file);
+                return new Iterator<Source>()
+                {
+                    private Iterator<String> entryNames;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        if (entryNames == null)
+                        {
+                            entryNames = archive.getEntryNames().iterator();
+                        }
+
+                        if (!entryNames.hasNext())
+                        {
+                            archive.release();
+                            return false;
+                        }
+
+                        return true;
+                    }
+
+                    @Override
+                    public Source next()
+                    {
+                        if (!hasNext())
+                        {
+                            throw new NoSuchElementException();
+                        }
+
+                        final String entryName = entryNames.next();
+                        final Source source = new StreamSource(new LazyInputStream()
+                        {
+                            @Override
+                            protected InputStream open() throws IOException
+                            {
+                                return archive.getInputStream(entryName);
+                            }
+                        });
+                        source.setSystemId("jar:" + archiveUri + "!/" + entryName);
+                        return source;
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * A zip archive shared by the documents of one iteration, opened when
+     * first needed and closed once released and no entry is being read.
+     */
+    private static final class ZipArchive
+    {
+        private final File file;
+        private ZipFile zipFile;
+        private int openStreamCount;
+        private boolean released;
+
+        public ZipArchive(final File file)
+        {
+            this.file = file;
+        }
+
+        private ZipFile getZipFile() throws IOException
+        {
+            if (zipFile == null)
+            {
+                zipFile = new ZipFile(file);
+            }
+
+            return zipFile;
+        }
+
+        public synchronized List<String> getEntryNames()
+        {
+            try
+            {
+                final List<String> entryNames = new ArrayList<String>();
+                final Enumeration<? extends ZipEntry> entries = getZipFile().entries();
+                while (entries.hasMoreElements())
+                {
+                    final ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory())
+                    {
+                        entryNames.add(entry.getName());
+                    }
+                }
+
+                return entryNames;
+            }
+            catch (final IOException e)
+            {
+                throw new PipelineException(e, "cannot read archive %s", file);
+            }
+        }
+
+        public synchronized InputStream getInputStream(final String entryName) throws IOException
+        {
+            final ZipEntry entry = getZipFile().getEntry(entryName);
+            if (entry == null)
+            {
+                closeIfUnused();
+                throw new IOException(String.format("no entry %s in archive %s", entryName, file));
+            }
+
+            final InputStream input = zipFile.getInputStream(entry);
+            openStreamCount++;
+            return new BufferedInputStream(new FilterInputStream(input)
+            {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException
+                {
+                    if (closed)
+                    {
+                        return;
+                    }
+                    closed = true;
+
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        streamClosed();
+                    }
+                }
+            }, BUFFER_SIZE);
+        }
+
+        private synchronized void streamClosed() throws IOException
+        {
+            openStreamCount--;
+            closeIfUnused();
+        }
+
+        public synchronized void release()
+        {
+            released = true;
+            try
+            {
+                closeIfUnused();
+            }
+            catch (final IOException e)
+            {
+                throw new PipelineException(e, "cannot close archive %s", file);
+            }
+        }
+
+        private void closeIfUnused() throws IOException
+        {
+            if (released && openStreamCount == 0 && zipFile != null)
+            {
+                final ZipFile closedZipFile = zipFile;
+                zipFile = null;
+                closedZipFile.close();
+            }
+        }
+    }
+}
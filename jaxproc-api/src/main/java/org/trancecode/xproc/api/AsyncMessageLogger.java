@@ -0,0 +1,292 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link MessageLogger} that returns immediately to the running pipeline and
+ * delivers the messages to another {@link MessageLogger} from a background
+ * thread.
+ * <p>
+ * Messages are stored in a bounded lock-free ring buffer and delivered by
+ * batches. If the target logger implements {@link Flushable}, it is flushed
+ * after each batch. When the buffer is full, messages are either dropped or
+ * the logging thread waits, depending on the {@link OverflowPolicy}. Messages
+ * logged after {@link #close()} are dropped, and failures of the target logger
+ * are counted, as logging must not fail the pipeline.
+ * <p>
+ * {@link #close()} must be called to deliver the remaining messages and stop
+ * the background thread.
+ * 
+ * @author Herve Quiroz
+ */
+public final class AsyncMessageLogger implements MessageLogger
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private static final long FULL_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+
+    public static enum OverflowPolicy
+    {
+        DROP, BLOCK
+    }
+
+    private final MessageLogger logger;
+    private final OverflowPolicy overflowPolicy;
+    private final int batchSize;
+    private final int mask;
+    private final AtomicReferenceArray<Message> buffer;
+    // Next slot to be claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+    // Next slot to be read by the consumer
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    // Number of producers between the check of the closed flag and the publication of their message
+    private final AtomicInteger producerCount = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean closed;
+    // Set while the consumer is parked until a message is published
+    private volatile boolean idle;
+
+    public AsyncMessageLogger(final MessageLogger logger)
+    {
+        this(logger, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, OverflowPolicy.DROP);
+    }
+
+    /**
+     * @param capacity
+     *            the maximum number of pending messages, rounded up to a power
+     *            of two
+     */
+    public AsyncMessageLogger(final MessageLogger logger, final int capacity, final int batchSize,
+            final OverflowPolicy overflowPolicy)
+    {
+        if (capacity < 1 || capacity > 1 << 30)
+        {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("invalid batch size: " + batchSize);
+        }
+
+        this.logger = logger;
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        mask = size - 1;
+        buffer = new AtomicReferenceArray<Message>(size);
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                deliver();
+            }
+        }, "jaxproc-message-logger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void log(final Message message)
+    {
+        if (message == null)
+        {
+            throw new NullPointerException("message");
+        }
+
+        producerCount.incrementAndGet();
+        try
+        {
+            while (true)
+            {
+                if (closed)
+                {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+
+                final long slot = tail.get();
+                if (slot - head.get() > mask)
+                {
+                    if (overflowPolicy == OverflowPolicy.DROP)
+                    {
+                        droppedCount.incrementAndGet();
+                        return;
+                    }
+
+                    LockSupport.parkNanos(FULL_WAIT);
+                    continue;
+                }
+
+                if (tail.compareAndSet(slot, slot + 1))
+                {
+                    buffer.set((int) slot & mask, message);
+                    return;
+                }
+            }
+        }
+        finally
+        {
+            producerCount.decrementAndGet();
+            if (idle)
+            {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private void deliver()
+    {
+        final List<Message> batch = new ArrayList<Message>(batchSize);
+        while (true)
+        {
+            // Read the flags before polling so that no message is left behind
+            final boolean last = closed && producerCount.get() == 0;
+            long position = head.get();
+            while (batch.size() < batchSize && position < tail.get())
+            {
+                final int index = (int) position & mask;
+                final Message message = buffer.get(index);
+                if (message == null)
+                {
+                    // The slot is claimed but the message is not published yet
+                    break;
+                }
+
+                buffer.set(index, null);
+                batch.add(message);
+                position++;
+                head.set(position);
+            }
+
+            if (batch.isEmpty())
+            {
+                if (last && head.get() == tail.get())
+                {
+                    return;
+                }
+
+                // Either the producer sees the flag or the consumer sees the message
+                idle = true;
+                if (closed)
+                {
+                    // Wait for the producers that claimed a slot before the logger was closed
+                    LockSupport.parkNanos(this, FULL_WAIT);
+                }
+                else if (buffer.get((int) head.get() & mask) == null)
+                {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                continue;
+            }
+
+            for (final Message message : batch)
+            {
+                try
+                {
+                    logger.log(message);
+                }
+                catch (final RuntimeException e)
+                {
+                    // Messages are not worth failing the pipeline
+                    failureCount.incrementAndGet();
+                }
+            }
+            deliveredCount.addAndGet(batch.size());
+            batch.clear();
+            flush();
+        }
+    }
+
+    private void flush()
+    {
+        if (logger instanceof Flushable)
+        {
+            try
+            {
+                ((Flushable) logger).flush();
+            }
+            catch (final IOException e)
+            {
+                // Messages are not worth failing the pipeline
+                failureCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Delivers the pending messages and stops the background thread.
+     */
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(thread);
+        try
+        {
+            thread.join();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    public long getDeliveredCount()
+    {
+        return deliveredCount.get();
+    }
+
+    /**
+     * Returns the number of times the target logger failed to log or flush
+     * messages.
+     */
+    public long getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[pending=%d, delivered=%d, dropped=%d, failures=%d]", getClass().getSimpleName(),
+                tail.get() - head.get(), getDeliveredCount(), getDroppedCount(), getFailureCount());
+    }
+}
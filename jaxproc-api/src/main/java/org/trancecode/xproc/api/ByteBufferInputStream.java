@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link InputStream} that reads the remaining bytes of a {@link ByteBuffer}.
+ * 
+ * @author Herve Quiroz
+ */
+final class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(final ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+        if (!buffer.hasRemaining())
+        {
+            return -1;
+        }
+
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length)
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        if (!buffer.hasRemaining())
+        {
+            return -1;
+        }
+
+        final int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+}
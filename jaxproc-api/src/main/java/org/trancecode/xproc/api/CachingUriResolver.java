@@ -0,0 +1,408 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * {@link URIResolver} that keeps the content of the resolved resources in
+ * memory, so that stylesheets and documents loaded by every pipeline run are
+ * only fetched once. It is typically registered with
+ * {@link XProcProperties#URI_RESOLVER}.
+ * <p>
+ * The raw content of the resources is cached, indexed by its digest so that
+ * identical resources are stored once, and the least recently used resources
+ * are evicted when the total size exceeds the maximum size. Cached resources
+ * expire after the time-to-live, and local files are fetched again when
+ * modified. The content may be stored off-heap using direct buffers. Unless
+ * specified otherwise, resources expire after {@link #DEFAULT_TIME_TO_LIVE}.
+ * <p>
+ * Resources are fetched by the delegate resolver if any, or else from their
+ * URL. Resources the delegate returns as anything other than a byte stream
+ * are not cached. The sources keep the system ID of the resource returned by
+ * the delegate, so that relative URIs are resolved against the actual location
+ * of the resource after redirects or catalog mapping. Instances of this class
+ * are thread-safe.
+ * 
+ * @author Herve Quiroz
+ */
+public final class CachingUriResolver implements URIResolver
+{
+    public static final long DEFAULT_MAXIMUM_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    private final URIResolver delegate;
+    private final long maximumSize;
+    private final long timeToLive;
+    private final boolean offHeap;
+    private final Map<String, Resource> resources = new LinkedHashMap<String, Resource>(16, 0.75f, true);
+    private final Map<String, Content> contents = new HashMap<String, Content>();
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    private static final class Resource
+    {
+        private final Content content;
+        private final String systemId;
+        private final long fetchTime;
+        private final File file;
+        private final long lastModified;
+
+        public Resource(final Content content, final String systemId, final long fetchTime, final File file,
+                final long lastModified)
+        {
+            this.content = content;
+            this.systemId = systemId;
+            this.fetchTime = fetchTime;
+            this.file = file;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class Content
+    {
+        private final String digest;
+        private final ByteBuffer bytes;
+        private int referenceCount;
+
+        public Content(final String digest, final ByteBuffer bytes)
+        {
+            this.digest = digest;
+            this.bytes = bytes;
+        }
+    }
+
+    public CachingUriResolver()
+    {
+        this(null, DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE, false);
+    }
+
+    /**
+     * @param delegate
+     *            the resolver used to fetch the resources, or {@code null}
+     * @param maximumSize
+     *            the maximum total size of the cached resources, in bytes
+     * @param timeToLive
+     *            how long resources are cached, in milliseconds, or {@code 0}
+     *            to cache them until evicted
+     * @param offHeap
+     *            whether to store the resources in direct buffers
+     */
+    public CachingUriResolver(final URIResolver delegate, final long maximumSize, final long timeToLive,
+            final boolean offHeap)
+    {
+        this.delegate = delegate;
+        this.maximumSize = maximumSize;
+        this.timeToLive = timeToLive;
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public Source resolve(final String href, final String base) throws TransformerException
+    {
+        final String systemId;
+        try
+        {
+            systemId = (base == null ? URI.create(href) : URI.create(base).resolve(href)).toString();
+        }
+        catch (final IllegalArgumentException e)
+        {
+            throw new TransformerException("invalid URI: " + href, e);
+        }
+
+        final Resource resource;
+        synchronized (this)
+        {
+            resource = resources.get(systemId);
+        }
+
+        // Files are checked outside the lock so that resolutions do not wait for each other
+        if (resource != null && isValid(resource))
+        {
+            synchronized (this)
+            {
+                hitCount++;
+            }
+            return newSource(resource.content, resource.systemId);
+        }
+
+        synchronized (this)
+        {
+            if (resource != null && resources.get(systemId) == resource)
+            {
+                remove(systemId);
+            }
+            missCount++;
+        }
+
+        final long fetchTime = System.currentTimeMillis();
+        final InputStream input;
+        final String resolvedSystemId;
+        if (delegate == null)
+        {
+            input = openStream(systemId);
+            resolvedSystemId = systemId;
+        }
+        else
+        {
+            final Source source = delegate.resolve(href, base);
+            if (!(source instanceof StreamSource) || ((StreamSource) source).getReader() != null)
+            {
+                return source;
+            }
+
+            resolvedSystemId = source.getSystemId() == null ? systemId : source.getSystemId();
+            if (((StreamSource) source).getInputStream() != null)
+            {
+                input = ((StreamSource) source).getInputStream();
+            }
+            else
+            {
+                input = openStream(resolvedSystemId);
+            }
+        }
+
+        // Modifications made while the file is read invalidate the resource
+        final File file = getFile(resolvedSystemId);
+        final long lastModified = file == null ? 0 : file.lastModified();
+        final byte[] bytes = read(input, resolvedSystemId);
+        final Content content = put(systemId, resolvedSystemId, bytes, fetchTime, file, lastModified);
+        if (content == null)
+        {
+            return newSource(ByteBuffer.wrap(bytes), resolvedSystemId);
+        }
+
+        return newSource(content, resolvedSystemId);
+    }
+
+    private static InputStream openStream(final String systemId) throws TransformerException
+    {
+        try
+        {
+            return new URL(systemId).openStream();
+        }
+        catch (final IOException e)
+        {
+            throw new TransformerException("cannot read " + systemId, e);
+        }
+    }
+
+    private static byte[] read(final InputStream input, final String systemId) throws TransformerException
+    {
+        try
+        {
+            try
+            {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                for (int count = input.read(buffer); count >= 0; count = input.read(buffer))
+                {
+                    output.write(buffer, 0, count);
+                }
+
+                return output.toByteArray();
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new TransformerException("cannot read " + systemId, e);
+        }
+    }
+
+    private static String getDigest(final byte[] bytes)
+    {
+        try
+        {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            final StringBuilder buffer = new StringBuilder();
+            for (final byte b : digest)
+            {
+                buffer.append(String.format("%02x", b & 0xff));
+            }
+
+            return buffer.toString();
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static File getFile(final String systemId)
+    {
+        try
+        {
+            final URI uri = URI.create(systemId);
+            if ("file".equals(uri.getScheme()) && !uri.isOpaque() && uri.getAuthority() == null
+                    && uri.getQuery() == null && uri.getFragment() == null)
+            {
+                return new File(uri);
+            }
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // Not a local file
+        }
+
+        return null;
+    }
+
+    private static Source newSource(final ByteBuffer bytes, final String systemId)
+    {
+        return new StreamSource(new ByteBufferInputStream(bytes), systemId);
+    }
+
+    private static Source newSource(final Content content, final String systemId)
+    {
+        return newSource(content.bytes.duplicate(), systemId);
+    }
+
+    private boolean isValid(final Resource resource)
+    {
+        if (timeToLive > 0 && System.currentTimeMillis() - resource.fetchTime > timeToLive)
+        {
+            return false;
+        }
+
+        return resource.file == null || resource.file.lastModified() == resource.lastModified;
+    }
+
+    /**
+     * Returns the cached content, or {@code null} if the resource is too large
+     * to be cached. The resource is indexed by the requested system ID and
+     * remembers the system ID it was resolved to.
+     */
+    private synchronized Content put(final String systemId, final String resolvedSystemId, final byte[] bytes,
+            final long fetchTime, final File file, final long lastModified)
+    {
+        if (bytes.length > maximumSize)
+        {
+            return null;
+        }
+
+        if (resources.containsKey(systemId))
+        {
+            remove(systemId);
+        }
+
+        final String digest = getDigest(bytes);
+        Content content = contents.get(digest);
+        if (content == null)
+        {
+            final ByteBuffer buffer;
+            if (offHeap)
+            {
+                buffer = ByteBuffer.allocateDirect(bytes.length);
+                buffer.put(bytes);
+                buffer.flip();
+            }
+            else
+            {
+                buffer = ByteBuffer.wrap(bytes);
+            }
+
+            content = new Content(digest, buffer.asReadOnlyBuffer());
+            contents.put(digest, content);
+            size += bytes.length;
+        }
+        content.referenceCount++;
+        resources.put(systemId, new Resource(content, resolvedSystemId, fetchTime, file, lastModified));
+
+        while (size > maximumSize)
+        {
+            remove(resources.keySet().iterator().next());
+            evictionCount++;
+        }
+
+        return content;
+    }
+
+    private void remove(final String systemId)
+    {
+        final Resource resource = resources.remove(systemId);
+        resource.content.referenceCount--;
+        if (resource.content.referenceCount == 0)
+        {
+            contents.remove(resource.content.digest);
+            size -= resource.content.bytes.capacity();
+        }
+    }
+
+    public synchronized void clear()
+    {
+        resources.clear();
+        contents.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the total size of the cached resources, in bytes.
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    public synchronized double getHitRate()
+    {
+        final long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%s[resources=%d, size=%d/%d, hits=%d, misses=%d, evictions=%d]", getClass()
+                .getSimpleName(), resources.size(), size, maximumSize, hitCount, missCount, evictionCount);
+    }
+}
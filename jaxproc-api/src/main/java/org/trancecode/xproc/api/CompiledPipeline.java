@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.Templates;
+
+/**
+ * An XProc pipeline that has been parsed and statically analyzed once and from
+ * which {@link Pipeline} instances can be created for each execution.
+ * <p>
+ * It is similar in its approach to the {@link Templates} pattern: instances are
+ * immutable and may be shared by several threads, whereas the {@link Pipeline}
+ * objects they create hold the per-run state (options, parameters and port
+ * bindings) and must not be shared.
+ * 
+ * @see Templates
+ * @see PipelineFactory#newCompiledPipeline(javax.xml.transform.Source)
+ * @author Herve Quiroz
+ */
+public abstract class CompiledPipeline
+{
+    protected CompiledPipeline()
+    {
+        // Protected constructor
+    }
+
+    /**
+     * Returns the system ID of the pipeline source, or {@code null} if
+     * unknown.
+     */
+    public abstract String getSystemId();
+
+    /**
+     * Creates a new {@link Pipeline} for a single execution. This method is
+     * thread-safe.
+     */
+    public abstract Pipeline newPipeline();
+
+    /**
+     * Returns the names of the options declared by the pipeline, or
+     * {@code null} if unknown. The default implementation returns
+     * {@code null}.
+     */
+    public Set<QName> getOptionNames()
+    {
+        return null;
+    }
+
+    /**
+     * Returns the name of an option of the pipeline, to be created once and
+     * reused for each execution.
+     * 
+     * @throws IllegalArgumentException
+     *             if the pipeline does not declare such an option
+     * @see PipelineBindings
+     */
+    public final QName getOptionName(final QName name)
+    {
+        final Set<QName> optionNames = getOptionNames();
+        if (optionNames != null && !optionNames.contains(name))
+        {
+            throw new IllegalArgumentException(String.format("no such option in pipeline %s: %s", getSystemId(), name));
+        }
+
+        return name;
+    }
+
+    public final QName getOptionName(final String name)
+    {
+        return getOptionName(new QName(name));
+    }
+}
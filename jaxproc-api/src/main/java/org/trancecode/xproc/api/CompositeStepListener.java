@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link StepListener} that forwards the events to several listeners, so
+ * that they can all be registered with the single-valued
+ * {@link XProcProperties#STEP_LISTENER} property.
+ * 
+ * @see PipelineFactory#addStepListener(StepListener)
+ * @author Herve Quiroz
+ */
+public final class CompositeStepListener implements StepListener
+{
+    private final List<StepListener> listeners = new CopyOnWriteArrayList<StepListener>();
+
+    public CompositeStepListener(final StepListener... listeners)
+    {
+        this.listeners.addAll(Arrays.asList(listeners));
+    }
+
+    public void add(final StepListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public List<StepListener> getListeners()
+    {
+        return listeners;
+    }
+
+    @Override
+    public void stepStarted(final StepEvent event)
+    {
+        for (final StepListener listener : listeners)
+        {
+            listener.stepStarted(event);
+        }
+    }
+
+    @Override
+    public void stepFinished(final StepEvent event)
+    {
+        for (final StepListener listener : listeners)
+        {
+            listener.stepFinished(event);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s%s", getClass().getSimpleName(), listeners);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import javax.xml.transform.Source;
+
+/**
+ * Receives the documents written to an output port while the pipeline is
+ * running.
+ * 
+ * @see Pipeline#bindOutputPort(String, DocumentListener)
+ * @author Herve Quiroz
+ */
+public interface DocumentListener
+{
+    /**
+     * Called each time a document is written to the port. The document is
+     * available as soon as this method is called and the listener may block
+     * to slow down the pipeline.
+     */
+    void documentProduced(String portName, Source document);
+
+    /**
+     * Called once no more documents will be written to the port, including
+     * when the execution fails.
+     */
+    void portClosed(String portName);
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A {@link DocumentListener} that buffers the documents of a single output
+ * port in a bounded queue, from which they can be read using a blocking
+ * {@link Iterator}.
+ * <p>
+ * The pipeline is blocked when the queue is full, so that the memory used does
+ * not depend on the number of documents. Documents must be read from another
+ * thread than the one running the pipeline (e.g. using
+ * {@link Pipeline#executeAsync(java.util.concurrent.Executor)}).
+ * 
+ * @author Herve Quiroz
+ */
+public final class DocumentQueue implements DocumentListener, Iterable<Source>
+{
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final Source END = new StreamSource();
+
+    private final Queue<Source> queue = new LinkedList<Source>();
+    private final int capacity;
+    private final AtomicBoolean iterated = new AtomicBoolean();
+    private volatile boolean closed;
+    private Throwable failure;
+
+    public DocumentQueue()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            the maximum number of buffered documents, or
+     *            {@link Integer#MAX_VALUE} for an unbounded queue
+     */
+    public DocumentQueue(final int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void documentProduced(final String portName, final Source document)
+    {
+        put(portName, document);
+    }
+
+    @Override
+    public void portClosed(final String portName)
+    {
+        put(portName, END);
+    }
+
+    private void put(final String portName, final Source document)
+    {
+        synchronized (queue)
+        {
+            try
+            {
+                while (!closed && queue.size() >= capacity)
+                {
+                    queue.wait();
+                }
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new PipelineException(e, "interrupted while writing to port %s", portName);
+            }
+
+            if (!closed)
+            {
+                queue.add(document);
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Discards the pending documents and any document produced later on. Any
+     * thread blocked on the iterator or on writing a document is released.
+     */
+    public void close()
+    {
+        close(null);
+    }
+
+    /**
+     * Closes the queue as {@link #close()} does, and makes the iterator throw
+     * a {@link PipelineException} instead of ending the sequence, so that the
+     * reader does not mistake the pending documents for the whole sequence.
+     * 
+     * @param cause
+     *            the reason why the documents are discarded, or {@code null}
+     *            to end the sequence normally
+     */
+    public void close(final Throwable cause)
+    {
+        synchronized (queue)
+        {
+            if (!closed)
+            {
+                failure = cause;
+            }
+            closed = true;
+            queue.clear();
+            queue.notifyAll();
+        }
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Returns a blocking iterator over the documents of the port. This method
+     * can be called only once, so a pipeline bound to a DocumentQueue must read
+     * the port only once.
+     */
+    @Override
+    public Iterator<Source> iterator()
+    {
+        if (!iterated.compareAndSet(false, true))
+        {
+            throw new IllegalStateException("documents have already been read from this queue");
+        }
+
+        return new Iterator<Source>()
+        {
+            private Source next;
+            private boolean end;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (next == null && !end)
+                {
+                    final Source document = take();
+                    if (document == END)
+                    {
+                        end = true;
+                    }
+                    else
+                    {
+                        next = document;
+                    }
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public Source next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+
+                final Source document = next;
+                next = null;
+                return document;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Waits for the next document, and returns {@link #END} once the port or
+     * the queue is closed.
+     * 
+     * @throws PipelineException
+     *             if the queue was closed because of a failure
+     */
+    private Source take()
+    {
+        synchronized (queue)
+        {
+            try
+            {
+                while (!closed && queue.isEmpty())
+                {
+                    queue.wait();
+                }
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new PipelineException(e, "interrupted while waiting for the next document");
+            }
+
+            if (closed)
+            {
+                if (failure != null)
+                {
+                    throw new PipelineException(failure, "documents have been discarded because of a failure");
+                }
+
+                return END;
+            }
+
+            queue.notifyAll();
+            return queue.remove();
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A {@link StepCache} that serializes the outputs of steps to a directory,
+ * one subdirectory per step execution and output port, so that they are
+ * reused by the following runs.
+ * <p>
+ * The documents of a port are first written to a temporary directory which is
+ * then renamed, so that concurrent runs never read incomplete outputs. The
+ * system IDs of the documents are stored along with them and restored when
+ * they are reused, so that their base URIs are the same as in a fresh run. The
+ * directory of a step execution is touched whenever its outputs are reused, so
+ * that {@link #pruneToSize(long)} and {@link #pruneOlderThan(long, TimeUnit)}
+ * remove the least recently used ones. Pruning must not run while pipelines
+ * use the cache, as they may still read the outputs being deleted.
+ * 
+ * @author Herve Quiroz
+ */
+public final class FileStepCache implements StepCache
+{
+    private static final String FILE_SUFFIX = ".xml";
+    // Lists the system IDs of the documents of a port, one per line
+    private static final String SYSTEM_IDS_FILE = "system-ids.txt";
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+
+    public FileStepCache(final File directory)
+    {
+        this.directory = directory;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    private File getPortDirectory(final String key, final String portName)
+    {
+        try
+        {
+            return new File(new File(directory, key), URLEncoder.encode(portName, "UTF-8"));
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Iterable<Source> getOutputs(final String key, final String portName)
+    {
+        final File portDirectory = getPortDirectory(key, portName);
+        final File systemIdsFile = new File(portDirectory, SYSTEM_IDS_FILE);
+        if (!systemIdsFile.isFile())
+        {
+            return null;
+        }
+
+        final List<String> systemIds = readSystemIds(systemIdsFile);
+        portDirectory.getParentFile().setLastModified(System.currentTimeMillis());
+        return new Iterable<Source>()
+        {
+            @Override
+            public Iterator<Source> iterator()
+            {
+                final List<Source> documents = new ArrayList<Source>();
+                for (int i = 0; i < systemIds.size(); i++)
+                {
+                    final File file = new File(portDirectory, i + FILE_SUFFIX);
+                    final Source document = new StreamSource(new LazyInputStream()
+                    {
+                        @Override
+                        protected InputStream open() throws IOException
+                        {
+                            return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+                        }
+                    });
+                    document.setSystemId(systemIds.get(i));
+                    documents.add(document);
+                }
+
+                return documents.iterator();
+            }
+        };
+    }
+
+    /**
+     * Returns the system IDs of the documents, {@code null} for documents that
+     * had none.
+     */
+    private static List<String> readSystemIds(final File file)
+    {
+        try
+        {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    ENCODING));
+            try
+            {
+                final List<String> systemIds = new ArrayList<String>();
+                for (String line = reader.readLine(); line != null; line = reader.readLine())
+                {
+                    systemIds.add(line.length() == 0 ? null : line);
+                }
+
+                return systemIds;
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new PipelineException(e, "cannot read %s", file);
+        }
+    }
+
+    @Override
+    public void putOutputs(final String key, final String portName, final Iterable<Source> documents)
+    {
+        final File portDirectory = getPortDirectory(key, portName);
+        final File parentDirectory = portDirectory.getParentFile();
+        if (!parentDirectory.isDirectory() && !parentDirectory.mkdirs())
+        {
+            throw new PipelineException("cannot create directory %s", parentDirectory);
+        }
+
+        final File temporaryDirectory = new File(parentDirectory, String.format(".%s-%d-%d.tmp",
+                portDirectory.getName(), Thread.currentThread().getId(), System.nanoTime()));
+        if (!temporaryDirectory.mkdir())
+        {
+            throw new PipelineException("cannot create directory %s", temporaryDirectory);
+        }
+
+        try
+        {
+            final Transformer serializer = Serializers.newSerializer();
+            final StringBuilder systemIds = new StringBuilder();
+            int index = 0;
+            for (final Source document : documents)
+            {
+                // System IDs are URIs, which cannot contain line breaks
+                final String systemId = StepDigest.getBaseUri(document);
+                systemIds.append(systemId == null ? "" : systemId).append('\n');
+                final File file = new File(temporaryDirectory, index + FILE_SUFFIX);
+                final OutputStream output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+                try
+                {
+                    final Result result = new StreamResult(output);
+                    result.setSystemId(file.toURI().toString());
+                    serializer.transform(document, result);
+                }
+                finally
+                {
+                    output.close();
+                }
+                index++;
+            }
+
+            // Written last, as its presence marks complete outputs
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(new File(temporaryDirectory,
+                    SYSTEM_IDS_FILE)), ENCODING);
+            try
+            {
+                writer.write(systemIds.toString());
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            delete(temporaryDirectory);
+            throw new PipelineException(e, "cannot write outputs of port %s to %s", portName, temporaryDirectory);
+        }
+        catch (final TransformerException e)
+        {
+            delete(temporaryDirectory);
+            throw new PipelineException(e, "cannot write outputs of port %s to %s", portName, temporaryDirectory);
+        }
+
+        if (!temporaryDirectory.renameTo(portDirectory))
+        {
+            delete(temporaryDirectory);
+            if (!portDirectory.isDirectory())
+            {
+                throw new PipelineException("cannot rename %s to %s", temporaryDirectory, portDirectory);
+            }
+            // Another run has stored the same outputs in the meantime
+        }
+    }
+
+    /**
+     * The directory of a step execution, with the values used to prune it.
+     */
+    private static final class Entry
+    {
+        private final File directory;
+        private final long lastModified;
+        private final long size;
+
+        public Entry(final File directory)
+        {
+            this.directory = directory;
+            lastModified = directory.lastModified();
+            size = getSize(directory);
+        }
+    }
+
+    private List<Entry> getEntries()
+    {
+        final List<Entry> entries = new ArrayList<Entry>();
+        final File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                if (file.isDirectory())
+                {
+                    entries.add(new Entry(file));
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    private static long getSize(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children == null)
+        {
+            return file.length();
+        }
+
+        long size = 0;
+        for (final File child : children)
+        {
+            size += getSize(child);
+        }
+
+        return size;
+    }
+
+    /**
+     * Deletes the least recently used outputs until the cache holds at most
+     * the given number of bytes.
+     */
+    public synchronized void pruneToSize(final long maximumSize)
+    {
+        final List<Entry> entries = getEntries();
+        long size = 0;
+        for (final Entry entry : entries)
+        {
+            size += entry.size;
+        }
+
+        Collections.sort(entries, new Comparator<Entry>()
+        {
+            @Override
+            public int compare(final Entry entry1, final Entry entry2)
+            {
+                return entry1.lastModified < entry2.lastModified ? -1
+                        : (entry1.lastModified == entry2.lastModified ? 0 : 1);
+            }
+        });
+
+        for (final Entry entry : entries)
+        {
+            if (size <= maximumSize)
+            {
+                return;
+            }
+
+            delete(entry.directory);
+            size -= entry.size;
+        }
+    }
+
+    /**
+     * Deletes the outputs that have not been stored or reused for the given
+     * amount of time.
+     */
+    public synchronized void pruneOlderThan(final long age, final TimeUnit unit)
+    {
+        final long oldest = System.currentTimeMillis() - unit.toMillis(age);
+        final File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                if (file.isDirectory() && file.lastModified() < oldest)
+                {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all the stored outputs.
+     */
+    public void clear()
+    {
+        final File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                delete(file);
+            }
+        }
+    }
+
+    private static void delete(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (final File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[%s]", getClass().getSimpleName(), directory);
+    }
+}
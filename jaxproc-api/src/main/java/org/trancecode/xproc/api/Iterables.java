@@ -16,6 +16,7 @@
 package org.trancecode.xproc.api;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Utility methods related to {@link Iterable}.
@@ -29,6 +30,99 @@ final class Iterables
         // No instantiation
     }
 
+    interface Function<F, T>
+    {
+        T apply(F input);
+    }
+
+    /**
+     * Returns a view of the sequence where each element is transformed on
+     * demand.
+     */
+    public static <F, T> Iterable<T> transform(final Iterable<F> sequence, final Function<? super F, T> function)
+    {
+        return new Iterable<T>()
+        {
+            @Override
+            public Iterator<T> iterator()
+            {
+                final Iterator<F> iterator = sequence.iterator();
+                return new Iterator<T>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public T next()
+                    {
+                        return function.apply(iterator.next());
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns a view of the concatenation of several sequences, each one being
+     * iterated on demand.
+     */
+    public static <T> Iterable<T> concat(final Iterable<? extends Iterable<T>> sequences)
+    {
+        return new Iterable<T>()
+        {
+            @Override
+            public Iterator<T> iterator()
+            {
+                final Iterator<? extends Iterable<T>> sequenceIterator = sequences.iterator();
+                return new Iterator<T>()
+                {
+                    private Iterator<T> iterator;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        while (iterator == null || !iterator.hasNext())
+                        {
+                            if (!sequenceIterator.hasNext())
+                            {
+                                return false;
+                            }
+                            iterator = sequenceIterator.next().iterator();
+                        }
+
+                        return true;
+                    }
+
+                    @Override
+                    public T next()
+                    {
+                        if (!hasNext())
+                        {
+                            throw new NoSuchElementException();
+                        }
+
+                        return iterator.next();
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
     public static <T> T getFirst(final Iterable<T> sequence, final T defaultValue)
     {
         final Iterator<T> iterator = sequence.iterator();
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link InputStream} that opens the underlying stream on the first read, so
+ * that sources can be created for many documents without opening them all.
+ * 
+ * @author Herve Quiroz
+ */
+abstract class LazyInputStream extends InputStream
+{
+    private InputStream input;
+    private boolean closed;
+
+    /**
+     * Opens the underlying stream. Called at most once.
+     */
+    protected abstract InputStream open() throws IOException;
+
+    private InputStream getInput() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("stream closed");
+        }
+
+        if (input == null)
+        {
+            input = open();
+        }
+
+        return input;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return getInput().read();
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException
+    {
+        return getInput().read(bytes, offset, length);
+    }
+
+    @Override
+    public long skip(final long count) throws IOException
+    {
+        return getInput().skip(count);
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return getInput().available();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        if (input != null)
+        {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * {@link InputStream} that reads a file through memory mapping. The file is
+ * mapped region by region, so that files larger than 2GB can be read. Closing
+ * the stream closes the file, but the regions are only unmapped once garbage
+ * collected.
+ * 
+ * @author Herve Quiroz
+ */
+final class MappedFileInputStream extends InputStream
+{
+    public static final long DEFAULT_REGION_SIZE = 256 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final long regionSize;
+    private long regionPosition;
+    private MappedByteBuffer region;
+
+    public MappedFileInputStream(final File file) throws IOException
+    {
+        this(file, DEFAULT_REGION_SIZE);
+    }
+
+    public MappedFileInputStream(final File file, final long regionSize) throws IOException
+    {
+        this.file = new RandomAccessFile(file, "r");
+        channel = this.file.getChannel();
+        size = channel.size();
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * Returns the current region, mapping the next one if the current one has
+     * been fully read, or {@code null} at the end of the file.
+     */
+    private MappedByteBuffer getRegion() throws IOException
+    {
+        if (region != null && region.hasRemaining())
+        {
+            return region;
+        }
+
+        if (region != null)
+        {
+            regionPosition += region.capacity();
+        }
+
+        if (regionPosition >= size)
+        {
+            region = null;
+            return null;
+        }
+
+        region = channel.map(MapMode.READ_ONLY, regionPosition, Math.min(regionSize, size - regionPosition));
+        return region;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final MappedByteBuffer buffer = getRegion();
+        if (buffer == null)
+        {
+            return -1;
+        }
+
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        final MappedByteBuffer buffer = getRegion();
+        if (buffer == null)
+        {
+            return -1;
+        }
+
+        final int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        if (region == null)
+        {
+            return (int) Math.min(Integer.MAX_VALUE, size - regionPosition);
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, size - regionPosition - region.position());
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        region = null;
+        file.close();
+    }
+}
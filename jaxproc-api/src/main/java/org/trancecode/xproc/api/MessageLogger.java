@@ -15,6 +15,8 @@
  */
 package org.trancecode.xproc.api;
 
+import javax.xml.stream.Location;
+
 /**
  * @author Herve Quiroz
  */
@@ -27,5 +29,25 @@ public interface MessageLogger
         Object getMessage();
     }
 
+    enum Severity
+    {
+        DEBUG, INFO, WARNING, ERROR
+    }
+
+    /**
+     * A {@link Message} with the context in which it was logged. Values that
+     * are unknown are {@code null}.
+     */
+    interface StructuredMessage extends Message
+    {
+        Severity getSeverity();
+
+        String getStepName();
+
+        String getPortName();
+
+        Location getLocation();
+    }
+
     void log(Message message);
 }
@@ -15,13 +15,30 @@
  */
 package org.trancecode.xproc.api;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.util.ArrayList;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.xml.namespace.QName;
 import javax.xml.transform.Result;
@@ -29,6 +46,8 @@ import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import org.trancecode.xproc.api.PipelineLimitException.Limit;
+
 /**
  * An instance of this abstract class can execute an XProc pipeline.
  * 
@@ -36,6 +55,18 @@ import javax.xml.transform.stream.StreamSource;
  */
 public abstract class Pipeline
 {
+    private static final Executor TIMEOUT_EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable, "jaxproc-pipeline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     protected Pipeline()
     {
         // Protected constructor
@@ -67,10 +98,30 @@ public abstract class Pipeline
     {
         for (final Entry<QName, Object> option : options.entrySet())
         {
-            setParameter(option.getKey(), option.getValue());
+            setOption(option.getKey(), option.getValue());
         }
     }
 
+    /**
+     * Sets the options and parameters of a {@link PipelineBindings} object,
+     * which may be reused for several pipelines.
+     * <p>
+     * The default implementation calls {@link #setOptions(Map)} and
+     * {@link #setParameters(Map)}.
+     */
+    public void setBindings(final PipelineBindings bindings)
+    {
+        setOptions(bindings.getOptions());
+        setParameters(bindings.getParameters());
+    }
+
+    /**
+     * Binds an input port to a sequence of documents.
+     * <p>
+     * The sequence may be evaluated lazily: implementations should iterate
+     * over it only when the documents are actually read, without copying it,
+     * so that large sequences can be bound with constant memory usage.
+     */
     public abstract void bindInputPort(String name, Iterable<Source> sources);
 
     public void bindInputPort(final String name, final Source... sources)
@@ -78,20 +129,52 @@ public abstract class Pipeline
         bindInputPort(name, Arrays.asList(sources));
     }
 
+    /**
+     * Binds an input port to the documents of an output port of another
+     * pipeline execution, without serializing them.
+     * <p>
+     * The default implementation binds the port to the documents returned by
+     * {@link PipelineResult#readDocuments(String)}, read when the port is
+     * actually read. Implementations should recognize the {@link Source}
+     * objects they return, so that documents are passed as trees from one
+     * pipeline to the other.
+     */
+    public void bindInputPort(final String name, final PipelineResult result, final String outputPortName)
+    {
+        bindInputPort(name, new Iterable<Source>()
+        {
+            @Override
+            public Iterator<Source> iterator()
+            {
+                return result.readDocuments(outputPortName).iterator();
+            }
+        });
+    }
+
     public void bindInputPortToFile(final String name, final File file)
     {
         bindInputPortToFiles(name, file);
     }
 
+    /**
+     * Binds an input port to a sequence of files. Each {@link Source} is
+     * created when the sequence is iterated and the file is only opened when
+     * the document is parsed.
+     * <p>
+     * Files with the {@code .gz} extension are decompressed on the fly and zip
+     * archives (with the {@code .zip} extension) provide one document per
+     * entry.
+     */
     public void bindInputPortToFiles(final String name, final Iterable<File> files)
     {
-        final List<Source> sources = new ArrayList<Source>();
-        for (final File file : files)
+        bindInputPort(name, Iterables.concat(Iterables.transform(files, new Iterables.Function<File, Iterable<Source>>()
         {
-            sources.add(new StreamSource(file));
-        }
-
-        bindInputPort(name, sources);
+            @Override
+            public Iterable<Source> apply(final File file)
+            {
+                return Archives.getSources(file);
+            }
+        })));
     }
 
     public void bindInputPortToFiles(final String name, final File... files)
@@ -99,15 +182,127 @@ public abstract class Pipeline
         bindInputPortToFiles(name, Arrays.asList(files));
     }
 
-    public void bindInputPortToResources(final String name, final Iterable<URI> resources)
+    /**
+     * Binds an input port to a file read with a buffer of the specified size.
+     * A new {@link Source} is created each time the port is read, and the file
+     * is only opened when the document is parsed.
+     */
+    public void bindInputPortToFile(final String name, final File file, final int bufferSize)
     {
-        final List<Source> sources = new ArrayList<Source>();
-        for (final URI resource : resources)
+        bindInputPort(name, new Iterable<Source>()
         {
-            sources.add(new StreamSource(resource.toASCIIString()));
+            @Override
+            public Iterator<Source> iterator()
+            {
+                final Source source = new StreamSource(new LazyInputStream()
+                {
+                    @Override
+                    protected InputStream open() throws IOException
+                    {
+                        return new BufferedInputStream(new FileInputStream(file), bufferSize);
+                    }
+                });
+                source.setSystemId(file.toURI().toString());
+                return Collections.singleton(source).iterator();
+            }
+        });
+    }
+
+    /**
+     * Binds an input port to a file read through memory mapping, which saves
+     * the system calls of buffered reads for large files. The content is still
+     * copied to the buffers of the parser. A new {@link Source} is created
+     * each time the port is read, the file is only opened when the document is
+     * parsed, and the mapped regions are released once garbage collected, as
+     * Java provides no way to unmap them.
+     */
+    public void bindInputPortToMappedFile(final String name, final File file)
+    {
+        bindInputPort(name, new Iterable<Source>()
+        {
+            @Override
+            public Iterator<Source> iterator()
+            {
+                final Source source = new StreamSource(new LazyInputStream()
+                {
+                    @Override
+                    protected InputStream open() throws IOException
+                    {
+                        return new MappedFileInputStream(file);
+                    }
+                });
+                source.setSystemId(file.toURI().toString());
+                return Collections.singleton(source).iterator();
+            }
+        });
+    }
+
+    /**
+     * Binds an input port to the content of a channel from its current
+     * position, read with a buffer of the specified size.
+     */
+    public void bindInputPort(final String name, final FileChannel channel, final int bufferSize)
+    {
+        bindInputPort(name, new StreamSource(new BufferedInputStream(Channels.newInputStream(channel), bufferSize)));
+    }
+
+    /**
+     * Binds an input port to all the files of a directory accepted by the
+     * filter, in alphabetical order. A {@code null} filter accepts all the
+     * regular files.
+     */
+    public void bindInputPortToDirectory(final String name, final File directory, final FileFilter filter)
+    {
+        final File[] files = directory.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(final File file)
+            {
+                return file.isFile() && (filter == null || filter.accept(file));
+            }
+        });
+        if (files == null)
+        {
+            throw new IllegalArgumentException("not a directory: " + directory);
         }
 
-        bindInputPort(name, sources);
+        Arrays.sort(files);
+        bindInputPortToFiles(name, files);
+    }
+
+    /**
+     * Binds an input port to a sequence of resources. Local {@code file:}
+     * resources are read the same way as
+     * {@link #bindInputPortToFiles(String, Iterable)}, including compressed
+     * files and archives.
+     */
+    public void bindInputPortToResources(final String name, final Iterable<URI> resources)
+    {
+        bindInputPort(name, newSources(resources));
+    }
+
+    /**
+     * Returns the documents of a sequence of resources, read the same way as
+     * {@link #bindInputPortToResources(String, Iterable)}, e.g. to wrap them
+     * before binding them with {@link #bindInputPort(String, Iterable)}.
+     */
+    public static Iterable<Source> newSources(final Iterable<URI> resources)
+    {
+        return Iterables.concat(Iterables.transform(resources,
+                new Iterables.Function<URI, Iterable<Source>>()
+                {
+                    @Override
+                    public Iterable<Source> apply(final URI resource)
+                    {
+                        final File file = Archives.getCompressedFile(resource);
+                        if (file != null)
+                        {
+                            return Archives.getSources(file);
+                        }
+
+                        return Collections.<Source> singleton(new StreamSource(resource.toASCIIString()));
+                    }
+                }));
     }
 
     public void bindInputPortToResources(final String name, final URI... resources)
@@ -117,7 +312,7 @@ public abstract class Pipeline
 
     public void bindInputPortToResource(final String name, final URI resource)
     {
-        bindInputPort(name, new StreamSource(resource.toASCIIString()));
+        bindInputPortToResources(name, resource);
     }
 
     public void bindInputPortToResource(final String name, final String resource)
@@ -142,8 +337,206 @@ public abstract class Pipeline
         bindOutputPort(name, new StreamResult(resource));
     }
 
+    /**
+     * Binds an output port to a listener that receives each document as soon
+     * as it is produced, instead of buffering the documents until the end of
+     * the execution.
+     * <p>
+     * The default implementation throws {@link UnsupportedOperationException}.
+     * Implementations that override it must also override
+     * {@link #supportsStreamingOutputPorts()}.
+     * 
+     * @see DocumentQueue
+     */
+    public void bindOutputPort(final String name, final DocumentListener listener)
+    {
+        throw new UnsupportedOperationException("streaming output ports are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Returns whether {@link #bindOutputPort(String, DocumentListener)} is
+     * supported. The default implementation returns {@code false}.
+     */
+    public boolean supportsStreamingOutputPorts()
+    {
+        return false;
+    }
+
     /**
      * @throws XProcException
      */
     public abstract PipelineResult execute();
+
+    /**
+     * Returns the limits that apply to the executions of this pipeline,
+     * usually those of the {@link PipelineFactory} that created it, or
+     * {@code null} if unknown. The default implementation returns
+     * {@code null}.
+     * 
+     * @see PipelineFactory#getResourceLimits()
+     */
+    public ResourceLimits getResourceLimits()
+    {
+        return null;
+    }
+
+    /**
+     * Executes the pipeline with the {@link XProcProperties#TIMEOUT} of its
+     * {@link #getResourceLimits() limits}, if any.
+     * 
+     * @throws PipelineLimitException
+     *             if the execution timed out
+     * @throws XProcException
+     * @see #execute(long, TimeUnit)
+     */
+    public PipelineResult executeWithTimeout()
+    {
+        final ResourceLimits limits = getResourceLimits();
+        if (limits == null || limits.getTimeout() == ResourceLimits.UNLIMITED)
+        {
+            return execute();
+        }
+
+        return execute(limits.getTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Executes the pipeline in a thread of a shared pool and cancels it if it
+     * does not complete within the specified duration.
+     * 
+     * @throws PipelineLimitException
+     *             if the execution timed out
+     * @throws XProcException
+     * @see #execute(long, TimeUnit, Executor)
+     */
+    public PipelineResult execute(final long timeout, final TimeUnit unit)
+    {
+        return execute(timeout, unit, TIMEOUT_EXECUTOR);
+    }
+
+    /**
+     * Executes the pipeline using the specified {@link Executor} and cancels it
+     * if it does not complete within the specified duration.
+     * <p>
+     * On timeout, the thread running the pipeline is interrupted and
+     * {@link #cancel()} is called. If the implementation honours neither, the
+     * execution is only abandoned: it keeps running, and holding its memory,
+     * until it completes.
+     * 
+     * @throws PipelineLimitException
+     *             if the execution timed out
+     * @throws XProcException
+     */
+    public PipelineResult execute(final long timeout, final TimeUnit unit, final Executor executor)
+    {
+        final Future<PipelineResult> result = executeAsync(executor);
+        try
+        {
+            return result.get(timeout, unit);
+        }
+        catch (final TimeoutException e)
+        {
+            result.cancel(true);
+            throw new PipelineLimitException(Limit.TIMEOUT, unit.toMillis(timeout), "execution timed out after %s %s",
+                    timeout, unit);
+        }
+        catch (final InterruptedException e)
+        {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PipelineException(e, "interrupted while waiting for the execution");
+        }
+        catch (final ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error)
+            {
+                throw (Error) e.getCause();
+            }
+            throw new PipelineException(e.getCause());
+        }
+    }
+
+    /**
+     * Submits the execution of the pipeline to the specified {@link Executor}.
+     * <p>
+     * Cancelling the returned {@link Future} with interruption interrupts the
+     * thread running the pipeline and calls {@link #cancel()}. If the execution
+     * fails, {@link Future#get()} throws an
+     * {@link java.util.concurrent.ExecutionException} caused by the
+     * {@link XProcException}.
+     */
+    public Future<PipelineResult> executeAsync(final Executor executor)
+    {
+        final Callable<PipelineResult> execution = new Callable<PipelineResult>()
+        {
+            @Override
+            public PipelineResult call()
+            {
+                return execute();
+            }
+        };
+
+        final FutureTask<PipelineResult> task = new FutureTask<PipelineResult>(execution)
+        {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning)
+            {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled && mayInterruptIfRunning)
+                {
+                    Pipeline.this.cancel();
+                }
+
+                return cancelled;
+            }
+        };
+
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Requests the running execution to stop as soon as possible. This method
+     * may be called from any thread.
+     * <p>
+     * The default implementation does nothing. Implementations should stop
+     * running steps and make {@link #execute()} throw a
+     * {@link PipelineException}. They should also check the interrupted status
+     * of the running thread between steps.
+     */
+    public void cancel()
+    {
+        // Nothing by default
+    }
+
+    /**
+     * Clears the options, parameters and port bindings, so that this instance
+     * can be used for another execution of the same pipeline. Implementations
+     * may keep the state that does not depend on the execution (e.g. buffers
+     * or the static context). The {@link PipelineResult} of the previous
+     * execution must not be used after the pipeline is reset.
+     * <p>
+     * The default implementation throws {@link UnsupportedOperationException}.
+     * Implementations that override it must also override
+     * {@link #supportsReset()}.
+     * 
+     * @see PipelinePool
+     */
+    public void reset()
+    {
+        throw new UnsupportedOperationException("reset is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Returns whether {@link #reset()} is supported. The default implementation
+     * returns {@code false}.
+     */
+    public boolean supportsReset()
+    {
+        return false;
+    }
 }
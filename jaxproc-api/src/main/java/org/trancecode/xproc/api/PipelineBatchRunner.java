@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link CompiledPipeline} concurrently for a sequence of tasks, each
+ * task binding the inputs of one execution and consuming its result.
+ * <p>
+ * The number of tasks submitted to the {@link Executor} and not completed yet
+ * is bounded: the sequence of tasks is not iterated further until a running
+ * task completes. Tasks are considered completed only once they have consumed
+ * the pipeline result, so that slow consumers also throttle the producer.
+ * <p>
+ * {@link Pipeline} instances are reused from one task to the next when the
+ * implementation {@link Pipeline#supportsReset() supports it}. The pipeline
+ * of a failed task is discarded.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineBatchRunner
+{
+    private final CompiledPipeline compiledPipeline;
+    private final Executor executor;
+    private final int maximumPendingTasks;
+    private final Semaphore pendingTasks;
+    private final PipelinePool pipelinePool;
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * A single execution of the pipeline. Methods are called from the threads
+     * of the {@link Executor}.
+     */
+    public interface Task
+    {
+        void bind(Pipeline pipeline);
+
+        /**
+         * Consumes the result of the execution. The result must not be used
+         * once this method returns, as the pipeline may then be reset and
+         * reused by another task. A task for which this method throws an
+         * exception is counted as failed, but {@link #failed(RuntimeException)}
+         * is not called, and the exception is thrown to the {@link Executor}.
+         */
+        void completed(PipelineResult result);
+
+        /**
+         * Reports the failure of the execution. An {@link Error} is wrapped in
+         * a {@link PipelineException}, and thrown to the {@link Executor} once
+         * reported.
+         */
+        void failed(RuntimeException error);
+    }
+
+    public PipelineBatchRunner(final CompiledPipeline compiledPipeline, final Executor executor,
+            final int maximumPendingTasks)
+    {
+        if (maximumPendingTasks < 1)
+        {
+            throw new IllegalArgumentException("invalid maximum number of pending tasks: " + maximumPendingTasks);
+        }
+
+        this.compiledPipeline = compiledPipeline;
+        this.executor = executor;
+        this.maximumPendingTasks = maximumPendingTasks;
+        pendingTasks = new Semaphore(maximumPendingTasks);
+        pipelinePool = new PipelinePool(maximumPendingTasks);
+    }
+
+    public void run(final Iterable<? extends Task> tasks)
+    {
+        run(tasks.iterator());
+    }
+
+    /**
+     * Runs all the tasks and returns once they are all completed.
+     */
+    public void run(final Iterator<? extends Task> tasks)
+    {
+        try
+        {
+            try
+            {
+                while (tasks.hasNext())
+                {
+                    pendingTasks.acquire();
+                    submit(tasks.next());
+                }
+            }
+            finally
+            {
+                // Wait for the pending tasks
+                pendingTasks.acquire(maximumPendingTasks);
+                pendingTasks.release(maximumPendingTasks);
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineException(e, "interrupted while running pipeline %s", compiledPipeline.getSystemId());
+        }
+    }
+
+    private void submit(final Task task)
+    {
+        final Runnable execution = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    execute(task);
+                }
+                finally
+                {
+                    pendingTasks.release();
+                }
+            }
+        };
+
+        try
+        {
+            executor.execute(execution);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            pendingTasks.release();
+            throw e;
+        }
+    }
+
+    private void execute(final Task task)
+    {
+        final Pipeline pipeline;
+        final PipelineResult result;
+        try
+        {
+            pipeline = pipelinePool.borrowPipeline(compiledPipeline);
+            task.bind(pipeline);
+            result = pipeline.execute();
+        }
+        catch (final RuntimeException e)
+        {
+            failedCount.incrementAndGet();
+            task.failed(e);
+            return;
+        }
+        catch (final Error e)
+        {
+            failedCount.incrementAndGet();
+            task.failed(new PipelineException(e, "error while running pipeline %s", compiledPipeline.getSystemId()));
+            throw e;
+        }
+
+        boolean consumed = false;
+        try
+        {
+            task.completed(result);
+            consumed = true;
+        }
+        finally
+        {
+            if (!consumed)
+            {
+                failedCount.incrementAndGet();
+            }
+        }
+
+        // Pipelines of failed tasks are not returned to the pool
+        pipelinePool.releasePipeline(compiledPipeline, pipeline);
+        completedCount.incrementAndGet();
+    }
+
+    public long getCompletedCount()
+    {
+        return completedCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns the number of pipelines that could not be reused because they
+     * failed to reset.
+     */
+    public long getResetFailureCount()
+    {
+        return pipelinePool.getResetFailureCount();
+    }
+}
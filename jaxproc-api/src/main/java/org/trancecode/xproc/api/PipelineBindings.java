@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Options and parameters set once and applied to each {@link Pipeline} created
+ * from a {@link CompiledPipeline}, with
+ * {@link Pipeline#setBindings(PipelineBindings)}.
+ * <p>
+ * Option names are checked against the options declared by the compiled
+ * pipeline when they are set, rather than for each execution. Instances may be
+ * shared by several threads once configured, but must not be modified while
+ * they are applied.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineBindings
+{
+    private final CompiledPipeline compiledPipeline;
+    private final Map<QName, Object> options = new LinkedHashMap<QName, Object>();
+    private final Map<QName, Object> unmodifiableOptions = Collections.unmodifiableMap(options);
+    private final Map<QName, Object> parameters = new LinkedHashMap<QName, Object>();
+    private final Map<QName, Object> unmodifiableParameters = Collections.unmodifiableMap(parameters);
+
+    public PipelineBindings(final CompiledPipeline compiledPipeline)
+    {
+        this.compiledPipeline = compiledPipeline;
+    }
+
+    public CompiledPipeline getCompiledPipeline()
+    {
+        return compiledPipeline;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the pipeline does not declare such an option
+     */
+    public PipelineBindings setOption(final QName name, final Object value)
+    {
+        options.put(compiledPipeline.getOptionName(name), value);
+        return this;
+    }
+
+    public PipelineBindings setOption(final String name, final Object value)
+    {
+        return setOption(new QName(name), value);
+    }
+
+    public PipelineBindings setOptions(final Map<QName, Object> options)
+    {
+        for (final Map.Entry<QName, Object> option : options.entrySet())
+        {
+            setOption(option.getKey(), option.getValue());
+        }
+
+        return this;
+    }
+
+    public PipelineBindings setParameter(final QName name, final Object value)
+    {
+        parameters.put(name, value);
+        return this;
+    }
+
+    public PipelineBindings setParameter(final String name, final Object value)
+    {
+        return setParameter(new QName(name), value);
+    }
+
+    public PipelineBindings setParameters(final Map<QName, Object> parameters)
+    {
+        this.parameters.putAll(parameters);
+        return this;
+    }
+
+    public Map<QName, Object> getOptions()
+    {
+        return unmodifiableOptions;
+    }
+
+    public Map<QName, Object> getParameters()
+    {
+        return unmodifiableParameters;
+    }
+
+    /**
+     * Creates a new {@link Pipeline} from the compiled pipeline with these
+     * options and parameters.
+     */
+    public Pipeline newPipeline()
+    {
+        final Pipeline pipeline = compiledPipeline.newPipeline();
+        pipeline.setBindings(this);
+        return pipeline;
+    }
+}
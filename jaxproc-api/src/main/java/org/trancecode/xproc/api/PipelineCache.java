@@ -0,0 +1,292 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Bounded cache of {@link CompiledPipeline} objects keyed by the system ID of
+ * the pipeline source.
+ * <p>
+ * The least recently used pipeline is evicted when the cache is full. An entry
+ * is also discarded when the modification time of the pipeline file or of any
+ * of the registered library files differs from the one observed when the
+ * pipeline was compiled. Only {@code file:} URIs are checked for
+ * modifications, outside of the lock of the cache.
+ * <p>
+ * Instances of this class are thread-safe.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineCache
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 64;
+
+    private final PipelineFactory factory;
+    private final int maximumSize;
+    private final List<URI> libraries = new ArrayList<URI>();
+    private final Map<String, CacheEntry> entries;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    // Incremented when libraries are added, so that pipelines compiled before are not cached
+    private long generation;
+
+    private static final class CacheEntry
+    {
+        private final CompiledPipeline pipeline;
+        private final List<URI> resources;
+        private final long[] lastModified;
+
+        public CacheEntry(final CompiledPipeline pipeline, final List<URI> resources, final long[] lastModified)
+        {
+            this.pipeline = pipeline;
+            this.resources = resources;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public PipelineCache(final PipelineFactory factory)
+    {
+        this(factory, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public PipelineCache(final PipelineFactory factory, final int maximumSize)
+    {
+        if (maximumSize < 1)
+        {
+            throw new IllegalArgumentException("invalid maximum size: " + maximumSize);
+        }
+
+        this.factory = factory;
+        this.maximumSize = maximumSize;
+        entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest)
+            {
+                if (size() > PipelineCache.this.maximumSize)
+                {
+                    evictionCount++;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    public PipelineFactory getFactory()
+    {
+        return factory;
+    }
+
+    /**
+     * Registers a library the cached pipelines depend on. All the cached
+     * pipelines are discarded when the library is modified.
+     */
+    public synchronized void addLibrary(final URI library)
+    {
+        libraries.add(library);
+        entries.clear();
+        generation++;
+    }
+
+    public synchronized List<URI> getLibraries()
+    {
+        return Collections.unmodifiableList(new ArrayList<URI>(libraries));
+    }
+
+    /**
+     * @throws XProcException
+     */
+    public CompiledPipeline getCompiledPipeline(final URI pipeline)
+    {
+        return getCompiledPipeline(new StreamSource(pipeline.toString()));
+    }
+
+    /**
+     * Returns the cached {@link CompiledPipeline} for the system ID of the
+     * source, compiling it first if it is not cached or out of date. Sources
+     * with no system ID are never cached.
+     * 
+     * @throws XProcException
+     */
+    public CompiledPipeline getCompiledPipeline(final Source pipelineSource)
+    {
+        final String systemId = pipelineSource.getSystemId();
+        if (systemId == null)
+        {
+            synchronized (this)
+            {
+                missCount++;
+            }
+            return factory.newCompiledPipeline(pipelineSource);
+        }
+
+        final CacheEntry entry;
+        synchronized (this)
+        {
+            entry = entries.get(systemId);
+        }
+
+        if (entry != null)
+        {
+            // Files are checked outside of the lock so that hits are not serialized on disk accesses
+            final boolean upToDate = Arrays.equals(entry.lastModified, getLastModified(entry.resources));
+            synchronized (this)
+            {
+                if (upToDate)
+                {
+                    hitCount++;
+                    return entry.pipeline;
+                }
+
+                if (entries.get(systemId) == entry)
+                {
+                    entries.remove(systemId);
+                    evictionCount++;
+                }
+            }
+        }
+
+        final List<URI> resources;
+        final long compilationGeneration;
+        synchronized (this)
+        {
+            missCount++;
+            resources = getResources(systemId);
+            compilationGeneration = generation;
+        }
+
+        // Compile outside of the lock so that other pipelines remain available
+        final long[] lastModified = getLastModified(resources);
+        final CompiledPipeline pipeline = factory.newCompiledPipeline(pipelineSource);
+        synchronized (this)
+        {
+            if (compilationGeneration == generation)
+            {
+                entries.put(systemId, new CacheEntry(pipeline, resources, lastModified));
+            }
+        }
+
+        return pipeline;
+    }
+
+    /**
+     * @throws XProcException
+     */
+    public Pipeline newPipeline(final Source pipelineSource)
+    {
+        return getCompiledPipeline(pipelineSource).newPipeline();
+    }
+
+    /**
+     * Returns the pipeline and the libraries it depends on.
+     */
+    private List<URI> getResources(final String systemId)
+    {
+        final List<URI> resources = new ArrayList<URI>(libraries.size() + 1);
+        try
+        {
+            resources.add(URI.create(systemId));
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // Not checked for modifications
+        }
+        resources.addAll(libraries);
+
+        return resources;
+    }
+
+    private static long[] getLastModified(final List<URI> resources)
+    {
+        final long[] lastModified = new long[resources.size()];
+        for (int i = 0; i < lastModified.length; i++)
+        {
+            lastModified[i] = getLastModified(resources.get(i));
+        }
+
+        return lastModified;
+    }
+
+    private static long getLastModified(final URI resource)
+    {
+        if (!"file".equals(resource.getScheme()))
+        {
+            return 0;
+        }
+
+        try
+        {
+            return new File(resource).lastModified();
+        }
+        catch (final IllegalArgumentException e)
+        {
+            return 0;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public int getMaximumSize()
+    {
+        return maximumSize;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%s[size=%d/%d, hits=%d, misses=%d, evictions=%d]", getClass().getSimpleName(),
+                entries.size(), maximumSize, hitCount, missCount, evictionCount);
+    }
+}
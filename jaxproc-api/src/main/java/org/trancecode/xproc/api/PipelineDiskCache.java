@@ -0,0 +1,569 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Keeps compiled pipelines on disk, so that new processes can skip parsing and
+ * static analysis of pipelines they have already compiled.
+ * <p>
+ * Entries are keyed by a digest of the pipeline and library contents and of
+ * the {@link PipelineFactory} class and version. Only {@link CompiledPipeline}
+ * objects that are {@link Serializable} can be stored. When the factory
+ * returns other ones, this is recorded so that the following calls compile
+ * the pipeline directly.
+ * <p>
+ * As entries are deserialized, they are authenticated with a HMAC whose key is
+ * kept in a file only readable by the current user, so that entries written by
+ * anyone else are ignored. Only classes from the packages of the factory (see
+ * {@link #addAllowedPackage(String)}) and from a few JDK packages are
+ * deserialized. A missing cache directory is created with permissions
+ * restricted to the current user. On file systems without POSIX permissions
+ * (e.g. on Windows), the files are only protected by the access control they
+ * inherit from the home directory of the user.
+ * <p>
+ * Resources imported by the pipeline are not part of the key unless they are
+ * passed as libraries.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineDiskCache
+{
+    private static final String FILE_SUFFIX = ".ser";
+    private static final String UNSUPPORTED_SUFFIX = ".unsupported";
+    private static final String MAC_ALGORITHM = "HmacSHA1";
+    private static final int KEY_SIZE = 32;
+    private static final Set<String> JDK_PACKAGES = new HashSet<String>(Arrays.asList("java.lang", "java.math",
+            "java.net", "java.util", "java.util.concurrent", "java.util.concurrent.atomic", "javax.xml.namespace"));
+
+    private final PipelineFactory factory;
+    private final File directory;
+    private final File keyFile;
+    private final Set<String> allowedPackages = new CopyOnWriteArraySet<String>();
+
+    public PipelineDiskCache(final PipelineFactory factory)
+    {
+        this(factory, getDefaultDirectory());
+    }
+
+    public PipelineDiskCache(final PipelineFactory factory, final File directory)
+    {
+        this(factory, directory, getDefaultKeyFile());
+    }
+
+    /**
+     * @param keyFile
+     *            the file holding the secret key of the cache, created if
+     *            needed. It should not be in the cache directory, which may
+     *            be shared.
+     */
+    public PipelineDiskCache(final PipelineFactory factory, final File directory, final File keyFile)
+    {
+        this.factory = factory;
+        this.directory = directory;
+        this.keyFile = keyFile;
+        final Package factoryPackage = factory.getClass().getPackage();
+        if (factoryPackage != null)
+        {
+            allowedPackages.add(factoryPackage.getName());
+        }
+    }
+
+    /**
+     * Returns {@code $XDG_CACHE_HOME/jaxproc}, or {@code ~/.cache/jaxproc}.
+     */
+    public static File getDefaultDirectory()
+    {
+        final String cacheHome = System.getenv("XDG_CACHE_HOME");
+        if (cacheHome != null && cacheHome.length() > 0)
+        {
+            return new File(cacheHome, "jaxproc");
+        }
+
+        return new File(new File(System.getProperty("user.home"), ".cache"), "jaxproc");
+    }
+
+    /**
+     * Returns {@code ~/.jaxproc/cache.key}.
+     */
+    public static File getDefaultKeyFile()
+    {
+        return new File(new File(System.getProperty("user.home"), ".jaxproc"), "cache.key");
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Allows the classes of a package and of its subpackages to be
+     * deserialized, for compiled pipelines that reference classes outside of
+     * the package of the factory.
+     */
+    public void addAllowedPackage(final String packageName)
+    {
+        allowedPackages.add(packageName);
+    }
+
+    public CompiledPipeline getCompiledPipeline(final URI pipeline, final URI... libraries)
+    {
+        return getCompiledPipeline(pipeline, Arrays.asList(libraries));
+    }
+
+    /**
+     * @throws XProcException
+     */
+    public CompiledPipeline getCompiledPipeline(final URI pipeline, final List<URI> libraries)
+    {
+        final String factoryId = toHexString(newDigest().digest(
+                getBytes(factory.getClass().getName() + "\n" + factory.getVersion())));
+        final File unsupportedFile = new File(directory, factoryId + UNSUPPORTED_SUFFIX);
+        if (unsupportedFile.isFile())
+        {
+            return factory.newCompiledPipeline(new StreamSource(pipeline.toString()));
+        }
+
+        final byte[] pipelineContent = read(pipeline);
+        final MessageDigest digest = newDigest();
+        digest.update(getBytes(factoryId));
+        digest.update(getBytes(pipeline.toString()));
+        digest.update(pipelineContent);
+        for (final URI library : libraries)
+        {
+            digest.update(getBytes(library.toString()));
+            digest.update(read(library));
+        }
+
+        final File file = new File(directory, toHexString(digest.digest()) + FILE_SUFFIX);
+        if (file.isFile())
+        {
+            final CompiledPipeline compiledPipeline = load(file);
+            if (compiledPipeline != null)
+            {
+                return compiledPipeline;
+            }
+        }
+
+        final CompiledPipeline compiledPipeline = factory.newCompiledPipeline(new StreamSource(
+                new ByteArrayInputStream(pipelineContent), pipeline.toString()));
+        if (compiledPipeline instanceof Serializable)
+        {
+            store(compiledPipeline, file);
+        }
+        else if (createDirectory())
+        {
+            try
+            {
+                unsupportedFile.createNewFile();
+            }
+            catch (final IOException e)
+            {
+                // The cache is only an optimization
+            }
+        }
+
+        return compiledPipeline;
+    }
+
+    private boolean isAllowed(final String className)
+    {
+        String name = className;
+        while (name.startsWith("["))
+        {
+            name = name.substring(1);
+        }
+        if (name.length() == 1)
+        {
+            // Array of primitive values
+            return true;
+        }
+        if (name.startsWith("L") && name.endsWith(";"))
+        {
+            name = name.substring(1, name.length() - 1);
+        }
+
+        final int lastDot = name.lastIndexOf('.');
+        final String packageName = lastDot < 0 ? "" : name.substring(0, lastDot);
+        if (JDK_PACKAGES.contains(packageName))
+        {
+            return true;
+        }
+        for (final String allowedPackage : allowedPackages)
+        {
+            if (packageName.equals(allowedPackage) || packageName.startsWith(allowedPackage + "."))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the stored pipeline, or {@code null} if it cannot be read (e.g.
+     * because its classes changed or it was not written by this cache), in
+     * which case the file is deleted.
+     */
+    private CompiledPipeline load(final File file)
+    {
+        final Mac mac;
+        try
+        {
+            mac = newMac();
+        }
+        catch (final IOException e)
+        {
+            // The entry may be valid, but cannot be authenticated
+            return null;
+        }
+
+        try
+        {
+            final byte[] content = readFile(file);
+            final int macLength = mac.getMacLength();
+            if (content.length < macLength)
+            {
+                file.delete();
+                return null;
+            }
+
+            mac.update(content, macLength, content.length - macLength);
+            if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOf(content, macLength)))
+            {
+                file.delete();
+                return null;
+            }
+
+            final ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(content, macLength,
+                    content.length - macLength))
+            {
+                @Override
+                protected Class<?> resolveClass(final ObjectStreamClass description) throws IOException,
+                        ClassNotFoundException
+                {
+                    if (!isAllowed(description.getName()))
+                    {
+                        throw new InvalidClassException(description.getName(), "class not allowed in cache entries");
+                    }
+
+                    try
+                    {
+                        return Class.forName(description.getName(), false, factory.getClass().getClassLoader());
+                    }
+                    catch (final ClassNotFoundException e)
+                    {
+                        return super.resolveClass(description);
+                    }
+                }
+
+                @Override
+                protected Class<?> resolveProxyClass(final String[] interfaces) throws IOException
+                {
+                    throw new InvalidClassException("proxy classes are not allowed in cache entries");
+                }
+            };
+
+            return (CompiledPipeline) objectInput.readObject();
+        }
+        catch (final IOException e)
+        {
+            file.delete();
+            return null;
+        }
+        catch (final ClassNotFoundException e)
+        {
+            file.delete();
+            return null;
+        }
+        catch (final ClassCastException e)
+        {
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the pipeline to a temporary file first, so that concurrent
+     * processes never read a partially written entry.
+     */
+    private void store(final CompiledPipeline compiledPipeline, final File file)
+    {
+        if (!createDirectory())
+        {
+            return;
+        }
+
+        File temporaryFile = null;
+        try
+        {
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            final ObjectOutputStream objectOutput = new ObjectOutputStream(content);
+            objectOutput.writeObject(compiledPipeline);
+            objectOutput.close();
+            final Mac mac = newMac();
+            final byte[] signature = mac.doFinal(content.toByteArray());
+
+            temporaryFile = File.createTempFile("pipeline", ".tmp", directory);
+            final OutputStream output = new FileOutputStream(temporaryFile);
+            try
+            {
+                output.write(signature);
+                content.writeTo(output);
+            }
+            finally
+            {
+                output.close();
+            }
+
+            if (!temporaryFile.renameTo(file))
+            {
+                temporaryFile.delete();
+            }
+        }
+        catch (final IOException e)
+        {
+            // The cache is only an optimization
+            if (temporaryFile != null)
+            {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    private boolean createDirectory()
+    {
+        if (directory.isDirectory())
+        {
+            return true;
+        }
+
+        if (!directory.mkdirs())
+        {
+            return false;
+        }
+
+        restrictToOwner(directory);
+        return true;
+    }
+
+    /**
+     * Returns whether the files have POSIX permissions, which Windows file
+     * systems lack.
+     */
+    private static boolean supportsPosixPermissions()
+    {
+        return File.separatorChar == '/';
+    }
+
+    private static boolean restrictToOwner(final File file)
+    {
+        if (!supportsPosixPermissions())
+        {
+            // Files inherit the access control of their directory
+            return true;
+        }
+
+        final boolean executable = file.isDirectory();
+        return file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false)
+                && file.setWritable(true, true) && file.setExecutable(false, false)
+                && (!executable || file.setExecutable(true, true));
+    }
+
+    /**
+     * Returns the HMAC of the cache, creating its key file if needed.
+     */
+    private Mac newMac() throws IOException
+    {
+        if (!keyFile.isFile())
+        {
+            final File keyDirectory = keyFile.getAbsoluteFile().getParentFile();
+            if (!keyDirectory.isDirectory() && keyDirectory.mkdirs())
+            {
+                restrictToOwner(keyDirectory);
+            }
+
+            final File temporaryFile = File.createTempFile("cache", ".key", keyDirectory);
+            try
+            {
+                // Restrict the file before writing the key to it
+                if (!restrictToOwner(temporaryFile))
+                {
+                    throw new IOException("cannot restrict the permissions of " + temporaryFile + " to its owner");
+                }
+
+                final byte[] key = new byte[KEY_SIZE];
+                new SecureRandom().nextBytes(key);
+                final OutputStream output = new FileOutputStream(temporaryFile);
+                try
+                {
+                    output.write(key);
+                }
+                finally
+                {
+                    output.close();
+                }
+
+                // Another process may have created the key in the meantime
+                temporaryFile.renameTo(keyFile);
+            }
+            finally
+            {
+                temporaryFile.delete();
+            }
+        }
+
+        try
+        {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(readFile(keyFile), MAC_ALGORITHM));
+            return mac;
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFile(final File file) throws IOException
+    {
+        final InputStream input = new FileInputStream(file);
+        try
+        {
+            return readFully(input);
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private static byte[] readFully(final InputStream input) throws IOException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int count = input.read(buffer); count >= 0; count = input.read(buffer))
+        {
+            output.write(buffer, 0, count);
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Deletes all the entries.
+     */
+    public void clear()
+    {
+        final File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                if (file.getName().endsWith(FILE_SUFFIX) || file.getName().endsWith(UNSUPPORTED_SUFFIX))
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static byte[] read(final URI resource)
+    {
+        try
+        {
+            final InputStream input = resource.toURL().openStream();
+            try
+            {
+                return readFully(input);
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new PipelineException(e, "cannot read %s", resource);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            throw new PipelineException(e, "not an absolute URI: %s", resource);
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] getBytes(final String value)
+    {
+        try
+        {
+            return value.getBytes("UTF-8");
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHexString(final byte[] bytes)
+    {
+        final StringBuilder buffer = new StringBuilder();
+        for (final byte b : bytes)
+        {
+            buffer.append(String.format("%02x", b & 0xff));
+        }
+
+        return buffer.toString();
+    }
+}
@@ -15,51 +15,181 @@
  */
 package org.trancecode.xproc.api;
 
+import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
 
 /**
  * A PipelineFactory can be used to create {@link Pipeline} objects.
  * <p>
  * It is similar in its approach to the {@link TransformerFactory} pattern.
+ * <p>
+ * Once configured, a PipelineFactory may be shared by several threads:
+ * implementations must support concurrent calls to
+ * {@link #newPipeline(Source)} and {@link #newCompiledPipeline(Source)}.
  * 
  * @see TransformerFactory
  * @author Herve Quiroz
  */
 public abstract class PipelineFactory
 {
-    private final Map<String, Object> properties = new HashMap<String, Object>();
+    /**
+     * System property that selects the implementation returned by
+     * {@link #newInstance()}, either as a class name or as an alias.
+     */
+    public static final String FACTORY_PROPERTY = PipelineFactory.class.getName();
+
+    private static final Map<String, String> CLASS_ALIASES;
+    private static final Map<ClassLoader, WeakReference<Class<? extends PipelineFactory>>> DISCOVERED_CLASSES =
+            new WeakHashMap<ClassLoader, WeakReference<Class<? extends PipelineFactory>>>();
+    private static final Map<ClassLoader, Map<String, WeakReference<Class<? extends PipelineFactory>>>> LOADED_CLASSES =
+            new WeakHashMap<ClassLoader, Map<String, WeakReference<Class<? extends PipelineFactory>>>>();
+
+    static
+    {
+        final Map<String, String> aliases = new HashMap<String, String>();
+        aliases.put("tubular", "org.trancecode.xproc.tubular.TubularPipelineFactory");
+        CLASS_ALIASES = Collections.unmodifiableMap(aliases);
+    }
+
+    private final Map<String, Object> properties = new ConcurrentHashMap<String, Object>();
     private final Map<String, Object> unmodifiableProperties = Collections.unmodifiableMap(properties);
+    private ResourceLimits resourceLimits;
 
     protected PipelineFactory()
     {
         // Protected constructor
     }
 
+    /**
+     * Returns the aliases of the known {@link PipelineFactory} implementations,
+     * mapped to their class name.
+     */
+    public static Map<String, String> getClassAliases()
+    {
+        return CLASS_ALIASES;
+    }
+
+    private static ClassLoader getContextClassLoader()
+    {
+        return Thread.currentThread().getContextClassLoader();
+    }
+
+    /**
+     * Returns a new instance of the implementation selected by the
+     * {@link #FACTORY_PROPERTY} system property, or else of the first
+     * implementation registered as a service on the classpath. The result of
+     * the classpath scan is cached for each class loader.
+     */
     public static final PipelineFactory newInstance()
     {
-        final PipelineFactory instance = Iterables.getFirst(ServiceLoader.load(PipelineFactory.class), null);
+        final ClassLoader classLoader = getContextClassLoader();
+        final String selectedClassName = System.getProperty(FACTORY_PROPERTY);
+        if (selectedClassName != null)
+        {
+            return newInstance(selectedClassName, classLoader);
+        }
+
+        synchronized (DISCOVERED_CLASSES)
+        {
+            final WeakReference<Class<? extends PipelineFactory>> factoryClass = DISCOVERED_CLASSES.get(classLoader);
+            if (factoryClass != null && factoryClass.get() != null)
+            {
+                return newInstance(factoryClass.get());
+            }
+        }
+
+        final PipelineFactory instance = Iterables.getFirst(ServiceLoader.load(PipelineFactory.class, classLoader),
+                null);
         if (instance == null)
         {
             throw new IllegalStateException(String.format("no available %s implementation on the classpath",
                     PipelineFactory.class.getName()));
         }
 
+        synchronized (DISCOVERED_CLASSES)
+        {
+            DISCOVERED_CLASSES.put(classLoader, new WeakReference<Class<? extends PipelineFactory>>(instance
+                    .getClass()));
+        }
+
         return instance;
     }
 
-    public static final PipelineFactory newInstance(final String className, final ClassLoader classLoader)
+    /**
+     * Returns a new instance of the implementation with the specified class
+     * name or alias.
+     * 
+     * @see #getClassAliases()
+     */
+    public static final PipelineFactory newInstance(final String className)
+    {
+        return newInstance(className, getContextClassLoader());
+    }
+
+    public static final PipelineFactory newInstance(final String classNameOrAlias, final ClassLoader classLoader)
     {
+        final String className;
+        if (CLASS_ALIASES.containsKey(classNameOrAlias))
+        {
+            className = CLASS_ALIASES.get(classNameOrAlias);
+        }
+        else
+        {
+            className = classNameOrAlias;
+        }
+
+        synchronized (LOADED_CLASSES)
+        {
+            final Map<String, WeakReference<Class<? extends PipelineFactory>>> classes = LOADED_CLASSES
+                    .get(classLoader);
+            if (classes != null && classes.get(className) != null && classes.get(className).get() != null)
+            {
+                return newInstance(classes.get(className).get());
+            }
+        }
+
+        final Class<? extends PipelineFactory> factoryClass;
+        try
+        {
+            factoryClass = Class.forName(className, true, classLoader).asSubclass(PipelineFactory.class);
+        }
+        catch (final ClassNotFoundException e)
+        {
+            throw new IllegalArgumentException("no such class: " + className, e);
+        }
+        catch (final ClassCastException e)
+        {
+            throw new IllegalArgumentException("not a " + PipelineFactory.class.getName() + " class: " + className, e);
+        }
+
+        synchronized (LOADED_CLASSES)
+        {
+            Map<String, WeakReference<Class<? extends PipelineFactory>>> classes = LOADED_CLASSES.get(classLoader);
+            if (classes == null)
+            {
+                classes = new HashMap<String, WeakReference<Class<? extends PipelineFactory>>>();
+                LOADED_CLASSES.put(classLoader, classes);
+            }
+            classes.put(className, new WeakReference<Class<? extends PipelineFactory>>(factoryClass));
+        }
+
+        return newInstance(factoryClass);
+    }
+
+    private static PipelineFactory newInstance(final Class<? extends PipelineFactory> factoryClass)
+    {
+        final String className = factoryClass.getName();
         try
         {
-            @SuppressWarnings("unchecked")
-            final Class<PipelineFactory> factoryClass = (Class<PipelineFactory>) Class.forName(className, true,
-                    classLoader);
             return factoryClass.newInstance();
         }
         catch (final InstantiationException e)
@@ -70,10 +200,6 @@ public abstract class PipelineFactory
         {
             throw new IllegalStateException("cannot instantiate a new instance of class " + className, e);
         }
-        catch (final ClassNotFoundException e)
-        {
-            throw new IllegalArgumentException("no such class: " + className, e);
-        }
     }
 
     protected final Map<String, Object> getProperties()
@@ -81,14 +207,113 @@ public abstract class PipelineFactory
         return unmodifiableProperties;
     }
 
+    /**
+     * Returns the value of a property, or {@code null} if it is not set.
+     */
+    public final Object getProperty(final String property)
+    {
+        return properties.get(property);
+    }
+
+    /**
+     * Sets a property, or removes it if the value is {@code null}. The
+     * previous value is kept if the new one is not a valid limit.
+     * 
+     * @throws IllegalArgumentException
+     *             if the property is one of the {@link ResourceLimits} and the
+     *             value is invalid
+     */
     public final void setProperty(final String property, final Object value)
     {
-        properties.put(property, value);
+        synchronized (properties)
+        {
+            final Object previousValue;
+            if (value == null)
+            {
+                previousValue = properties.remove(property);
+            }
+            else
+            {
+                previousValue = properties.put(property, value);
+            }
+
+            try
+            {
+                if (resourceLimits != null)
+                {
+                    resourceLimits.update(properties);
+                }
+                else
+                {
+                    ResourceLimits.validate(properties);
+                }
+            }
+            catch (final IllegalArgumentException e)
+            {
+                if (previousValue == null)
+                {
+                    properties.remove(property);
+                }
+                else
+                {
+                    properties.put(property, previousValue);
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Registers a {@link StepListener} in addition to the one already set as
+     * {@link XProcProperties#STEP_LISTENER}, if any, using a
+     * {@link CompositeStepListener}.
+     */
+    public final void addStepListener(final StepListener listener)
+    {
+        synchronized (properties)
+        {
+            final Object currentListener = properties.get(XProcProperties.STEP_LISTENER);
+            if (currentListener == null)
+            {
+                setProperty(XProcProperties.STEP_LISTENER, listener);
+            }
+            else if (currentListener instanceof CompositeStepListener)
+            {
+                ((CompositeStepListener) currentListener).add(listener);
+            }
+            else
+            {
+                setProperty(XProcProperties.STEP_LISTENER, new CompositeStepListener((StepListener) currentListener,
+                        listener));
+            }
+        }
     }
 
     public final void setProperties(final Map<String, Object> properties)
     {
-        this.properties.putAll(properties);
+        for (final Map.Entry<String, Object> property : properties.entrySet())
+        {
+            setProperty(property.getKey(), property.getValue());
+        }
+    }
+
+    /**
+     * Returns the limits set by the properties of this factory, shared by all
+     * the pipelines it creates. The same instance is always returned, and is
+     * updated when the properties change.
+     */
+    public final ResourceLimits getResourceLimits()
+    {
+        synchronized (properties)
+        {
+            if (resourceLimits == null)
+            {
+                resourceLimits = new ResourceLimits(properties);
+            }
+
+            return resourceLimits;
+        }
     }
 
     /**
@@ -96,6 +321,42 @@ public abstract class PipelineFactory
      */
     public abstract Pipeline newPipeline(Source pipelineSource);
 
+    /**
+     * Parses and analyzes the pipeline once, so that several {@link Pipeline}
+     * instances can be created from the returned {@link CompiledPipeline}
+     * without compiling the pipeline again.
+     * <p>
+     * The default implementation does not actually retain anything and calls
+     * {@link #newPipeline(Source)} for each new {@link Pipeline}, reading the
+     * pipeline again from the system ID of the source. Implementations should
+     * override this method.
+     * 
+     * @throws XProcException
+     */
+    public CompiledPipeline newCompiledPipeline(final Source pipelineSource)
+    {
+        final String systemId = pipelineSource.getSystemId();
+        if (systemId == null)
+        {
+            throw new IllegalArgumentException("cannot compile a pipeline source with no system ID: " + pipelineSource);
+        }
+
+        return new CompiledPipeline()
+        {
+            @Override
+            public String getSystemId()
+            {
+                return systemId;
+            }
+
+            @Override
+            public Pipeline newPipeline()
+            {
+                return PipelineFactory.this.newPipeline(new StreamSource(systemId));
+            }
+        };
+    }
+
     public abstract String getVersion();
 
     public abstract String getXProcVersion();
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.transform.Source;
+
+/**
+ * Runs several pipelines concurrently, the output ports of some pipelines
+ * being connected to the input ports of other ones.
+ * <p>
+ * Documents flow from one stage to the other through bounded
+ * {@link DocumentQueue} buffers, as soon as they are produced if the
+ * implementation {@link Pipeline#supportsStreamingOutputPorts() supports it},
+ * or else once the upstream stage is complete. When an output port is
+ * connected to several input ports, the same {@link Source} objects are passed
+ * to all of them, so the implementation should return tree sources.
+ * <p>
+ * Connected input ports are bound to sequences that can be iterated only once,
+ * so the implementations must read each of their input ports only once.
+ * <p>
+ * When a stage is connected to several stages that depend on a common
+ * upstream stage (e.g. {@code A -> C} and {@code A -> B -> C}), the stage may
+ * wait for documents on one port while the upstream stage is blocked on a full
+ * buffer of another port. The buffers of the input ports of such a stage are
+ * therefore unbounded.
+ * <p>
+ * When a stage fails, the stages reading the documents it produced fail as
+ * well instead of reading a truncated sequence. A stage that completes without
+ * reading all of its connected input ports discards the remaining documents.
+ * <p>
+ * As all the stages run at the same time, the {@link Executor} must be able to
+ * run as many tasks concurrently as there are stages. A PipelineGraph can be
+ * executed only once.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineGraph
+{
+    private final Map<String, Pipeline> stages = new LinkedHashMap<String, Pipeline>();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final Map<String, List<String>> downstreamStages = new HashMap<String, List<String>>();
+    private final Map<String, Map<String, List<DocumentQueue>>> outputQueues =
+            new HashMap<String, Map<String, List<DocumentQueue>>>();
+    private final Map<String, List<DocumentQueue>> inputQueues = new HashMap<String, List<DocumentQueue>>();
+    private final List<DocumentQueue> queues = new ArrayList<DocumentQueue>();
+    private final int bufferSize;
+    private boolean executed;
+
+    private static final class Connection
+    {
+        private final String fromStage;
+        private final String outputPort;
+        private final String toStage;
+        private final String inputPort;
+
+        public Connection(final String fromStage, final String outputPort, final String toStage,
+                final String inputPort)
+        {
+            this.fromStage = fromStage;
+            this.outputPort = outputPort;
+            this.toStage = toStage;
+            this.inputPort = inputPort;
+        }
+    }
+
+    public PipelineGraph()
+    {
+        this(DocumentQueue.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param bufferSize
+     *            the maximum number of documents buffered for each connection
+     */
+    public PipelineGraph(final int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Adds a stage. Ports that are not connected to other stages must be bound
+     * beforehand.
+     */
+    public void addStage(final String name, final Pipeline pipeline)
+    {
+        if (stages.containsKey(name))
+        {
+            throw new IllegalArgumentException("duplicate stage: " + name);
+        }
+
+        stages.put(name, pipeline);
+        downstreamStages.put(name, new ArrayList<String>());
+    }
+
+    private Pipeline getStage(final String name)
+    {
+        final Pipeline pipeline = stages.get(name);
+        if (pipeline == null)
+        {
+            throw new IllegalArgumentException("no such stage: " + name);
+        }
+
+        return pipeline;
+    }
+
+    /**
+     * Connects an output port to an input port. An input port can be connected
+     * to only one output port.
+     */
+    public void connect(final String fromStage, final String outputPort, final String toStage, final String inputPort)
+    {
+        getStage(fromStage);
+        getStage(toStage);
+        if (isDownstream(fromStage, toStage))
+        {
+            throw new IllegalArgumentException(String.format("connecting %s to %s would create a cycle", fromStage,
+                    toStage));
+        }
+
+        for (final Connection connection : connections)
+        {
+            if (connection.toStage.equals(toStage) && connection.inputPort.equals(inputPort))
+            {
+                throw new IllegalArgumentException(String.format("input port %s of stage %s is already connected",
+                        inputPort, toStage));
+            }
+        }
+
+        connections.add(new Connection(fromStage, outputPort, toStage, inputPort));
+        downstreamStages.get(fromStage).add(toStage);
+    }
+
+    private boolean isDownstream(final String stage, final String upstreamStage)
+    {
+        if (stage.equals(upstreamStage))
+        {
+            return true;
+        }
+
+        for (final String downstreamStage : downstreamStages.get(upstreamStage))
+        {
+            if (isDownstream(stage, downstreamStage))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the stage and all the stages it depends on.
+     */
+    private Set<String> getUpstreamStages(final String stage)
+    {
+        final Set<String> upstreamStages = new HashSet<String>();
+        upstreamStages.add(stage);
+        for (final Connection connection : connections)
+        {
+            if (connection.toStage.equals(stage))
+            {
+                upstreamStages.addAll(getUpstreamStages(connection.fromStage));
+            }
+        }
+
+        return upstreamStages;
+    }
+
+    /**
+     * Returns whether the input ports of the stage are connected to stages
+     * that depend on a common stage.
+     */
+    private boolean hasCommonUpstreamStage(final String stage)
+    {
+        final Set<String> upstreamStages = new HashSet<String>();
+        for (final Connection connection : connections)
+        {
+            if (connection.toStage.equals(stage))
+            {
+                for (final String upstreamStage : getUpstreamStages(connection.fromStage))
+                {
+                    if (!upstreamStages.add(upstreamStage))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void bindConnections()
+    {
+        final Map<String, Boolean> unbounded = new HashMap<String, Boolean>();
+        for (final Connection connection : connections)
+        {
+            if (!unbounded.containsKey(connection.toStage))
+            {
+                unbounded.put(connection.toStage, hasCommonUpstreamStage(connection.toStage));
+            }
+
+            final DocumentQueue queue = new DocumentQueue(unbounded.get(connection.toStage) ? Integer.MAX_VALUE
+                    : bufferSize);
+            stages.get(connection.toStage).bindInputPort(connection.inputPort, queue);
+            queues.add(queue);
+            if (!inputQueues.containsKey(connection.toStage))
+            {
+                inputQueues.put(connection.toStage, new ArrayList<DocumentQueue>());
+            }
+            inputQueues.get(connection.toStage).add(queue);
+
+            if (!outputQueues.containsKey(connection.fromStage))
+            {
+                outputQueues.put(connection.fromStage, new LinkedHashMap<String, List<DocumentQueue>>());
+            }
+            final Map<String, List<DocumentQueue>> outputPorts = outputQueues.get(connection.fromStage);
+            if (!outputPorts.containsKey(connection.outputPort))
+            {
+                outputPorts.put(connection.outputPort, new ArrayList<DocumentQueue>());
+            }
+            outputPorts.get(connection.outputPort).add(queue);
+        }
+    }
+
+    private static DocumentListener newListener(final List<DocumentQueue> queues)
+    {
+        if (queues.size() == 1)
+        {
+            return queues.get(0);
+        }
+
+        return new DocumentListener()
+        {
+            @Override
+            public void documentProduced(final String portName, final Source document)
+            {
+                for (final DocumentQueue queue : queues)
+                {
+                    queue.documentProduced(portName, document);
+                }
+            }
+
+            @Override
+            public void portClosed(final String portName)
+            {
+                for (final DocumentQueue queue : queues)
+                {
+                    queue.portClosed(portName);
+                }
+            }
+        };
+    }
+
+    /**
+     * Releases the stages blocked on a connection, the stages reading from a
+     * connection failing with the cause.
+     */
+    private void closeQueues(final Throwable cause)
+    {
+        for (final DocumentQueue queue : queues)
+        {
+            queue.close(cause);
+        }
+    }
+
+    private FutureTask<PipelineResult> newStageTask(final String stageName)
+    {
+        final Pipeline pipeline = stages.get(stageName);
+        final List<DocumentQueue> stageInputQueues = inputQueues.get(stageName);
+
+        // Output ports that cannot be streamed are copied once the stage is complete
+        final Map<String, DocumentListener> bufferedPorts = new HashMap<String, DocumentListener>();
+        final Map<String, List<DocumentQueue>> outputPorts = outputQueues.get(stageName);
+        if (outputPorts != null)
+        {
+            for (final Entry<String, List<DocumentQueue>> port : outputPorts.entrySet())
+            {
+                final DocumentListener listener = newListener(port.getValue());
+                if (pipeline.supportsStreamingOutputPorts())
+                {
+                    pipeline.bindOutputPort(port.getKey(), listener);
+                }
+                else
+                {
+                    bufferedPorts.put(port.getKey(), listener);
+                }
+            }
+        }
+
+        final Callable<PipelineResult> execution = new Callable<PipelineResult>()
+        {
+            @Override
+            public PipelineResult call()
+            {
+                try
+                {
+                    final PipelineResult result = pipeline.execute();
+                    for (final Entry<String, DocumentListener> port : bufferedPorts.entrySet())
+                    {
+                        for (final Source document : result.readDocuments(port.getKey()))
+                        {
+                            port.getValue().documentProduced(port.getKey(), document);
+                        }
+                        port.getValue().portClosed(port.getKey());
+                    }
+
+                    return result;
+                }
+                catch (final RuntimeException e)
+                {
+                    closeQueues(e);
+                    throw e;
+                }
+                catch (final Error e)
+                {
+                    closeQueues(e);
+                    throw e;
+                }
+                finally
+                {
+                    // Release the upstream stages blocked on an input port that was not read entirely
+                    if (stageInputQueues != null)
+                    {
+                        for (final DocumentQueue queue : stageInputQueues)
+                        {
+                            queue.close();
+                        }
+                    }
+                }
+            }
+        };
+
+        return new FutureTask<PipelineResult>(execution)
+        {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning)
+            {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled && mayInterruptIfRunning)
+                {
+                    pipeline.cancel();
+                }
+
+                return cancelled;
+            }
+        };
+    }
+
+    /**
+     * Runs all the stages and returns their results once they are all
+     * complete. If a stage fails, the other stages are cancelled.
+     * 
+     * @throws XProcException
+     */
+    public Map<String, PipelineResult> execute(final Executor executor)
+    {
+        synchronized (this)
+        {
+            if (executed)
+            {
+                throw new IllegalStateException("graph has already been executed");
+            }
+            executed = true;
+        }
+
+        bindConnections();
+
+        final Map<String, FutureTask<PipelineResult>> tasks = new LinkedHashMap<String, FutureTask<PipelineResult>>();
+        for (final String stageName : stages.keySet())
+        {
+            tasks.put(stageName, newStageTask(stageName));
+        }
+
+        final Map<String, PipelineResult> results = new LinkedHashMap<String, PipelineResult>();
+        try
+        {
+            for (final FutureTask<PipelineResult> task : tasks.values())
+            {
+                executor.execute(task);
+            }
+
+            for (final Entry<String, FutureTask<PipelineResult>> task : tasks.entrySet())
+            {
+                results.put(task.getKey(), task.getValue().get());
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineException(e, "interrupted while running pipeline graph");
+        }
+        catch (final ExecutionException e)
+        {
+            if (e.getCause() instanceof PipelineException)
+            {
+                throw (PipelineException) e.getCause();
+            }
+
+            throw new PipelineException(e.getCause(), "pipeline graph execution failed");
+        }
+        finally
+        {
+            if (results.size() < tasks.size())
+            {
+                for (final FutureTask<PipelineResult> task : tasks.values())
+                {
+                    task.cancel(true);
+                }
+                closeQueues(new PipelineException("pipeline graph execution was aborted"));
+            }
+        }
+
+        return Collections.unmodifiableMap(results);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+/**
+ * Thrown when an execution exceeds one of the {@link ResourceLimits}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineLimitException extends PipelineException
+{
+    private static final long serialVersionUID = 2716870327045813372L;
+
+    public static enum Limit
+    {
+        TIMEOUT, OUTPUT_DOCUMENTS, PORT_BYTES, CONCURRENT_RUNS
+    }
+
+    private final Limit limit;
+    private final long value;
+
+    public PipelineLimitException(final Limit limit, final long value, final String message,
+            final Object... parameters)
+    {
+        super(message, parameters);
+        this.limit = limit;
+        this.value = value;
+    }
+
+    public Limit getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Returns the value of the limit that was exceeded.
+     */
+    public long getValue()
+    {
+        return value;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.Location;
+
+import org.trancecode.xproc.api.MessageLogger.Severity;
+import org.trancecode.xproc.api.MessageLogger.StructuredMessage;
+
+/**
+ * A pool of {@link Pipeline} instances for each {@link CompiledPipeline}, so
+ * that the per-execution state of a pipeline can be reused for the following
+ * executions.
+ * <p>
+ * Released pipelines are {@link Pipeline#reset() reset} and kept for the next
+ * call to {@link #borrowPipeline(CompiledPipeline)}, up to a maximum number of
+ * idle pipelines for each compiled pipeline. Pipelines that do not
+ * {@link Pipeline#supportsReset() support reset}, or that fail to reset, are
+ * simply discarded. Reset failures are counted and reported as warnings to the
+ * {@link MessageLogger} of the pool, if any. Pipelines whose execution failed
+ * should not be released, so that they are discarded as well. This class is
+ * thread-safe.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelinePool
+{
+    public static final int DEFAULT_MAXIMUM_IDLE_PIPELINES = 8;
+
+    private final int maximumIdlePipelines;
+    private final MessageLogger messageLogger;
+    private final Map<CompiledPipeline, Queue<Pipeline>> idlePipelines =
+            new ConcurrentHashMap<CompiledPipeline, Queue<Pipeline>>();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong resetFailureCount = new AtomicLong();
+
+    /**
+     * Reports a pipeline that is discarded because it cannot be reset.
+     */
+    private static final class ResetFailureMessage implements StructuredMessage
+    {
+        private final String message;
+
+        public ResetFailureMessage(final String message)
+        {
+            this.message = message;
+        }
+
+        @Override
+        public String getType()
+        {
+            return "reset";
+        }
+
+        @Override
+        public Object getMessage()
+        {
+            return message;
+        }
+
+        @Override
+        public Severity getSeverity()
+        {
+            return Severity.WARNING;
+        }
+
+        @Override
+        public String getStepName()
+        {
+            return null;
+        }
+
+        @Override
+        public String getPortName()
+        {
+            return null;
+        }
+
+        @Override
+        public Location getLocation()
+        {
+            return null;
+        }
+    }
+
+    public PipelinePool()
+    {
+        this(DEFAULT_MAXIMUM_IDLE_PIPELINES);
+    }
+
+    public PipelinePool(final int maximumIdlePipelines)
+    {
+        this(maximumIdlePipelines, null);
+    }
+
+    /**
+     * @param messageLogger
+     *            the logger to which reset failures are reported, or
+     *            {@code null}
+     */
+    public PipelinePool(final int maximumIdlePipelines, final MessageLogger messageLogger)
+    {
+        if (maximumIdlePipelines < 1)
+        {
+            throw new IllegalArgumentException("invalid maximum number of idle pipelines: " + maximumIdlePipelines);
+        }
+
+        this.maximumIdlePipelines = maximumIdlePipelines;
+        this.messageLogger = messageLogger;
+    }
+
+    private Queue<Pipeline> getIdlePipelines(final CompiledPipeline compiledPipeline)
+    {
+        Queue<Pipeline> pipelines = idlePipelines.get(compiledPipeline);
+        if (pipelines == null)
+        {
+            synchronized (idlePipelines)
+            {
+                pipelines = idlePipelines.get(compiledPipeline);
+                if (pipelines == null)
+                {
+                    pipelines = new ArrayBlockingQueue<Pipeline>(maximumIdlePipelines);
+                    idlePipelines.put(compiledPipeline, pipelines);
+                }
+            }
+        }
+
+        return pipelines;
+    }
+
+    /**
+     * Returns an idle pipeline, or a new one if there is none.
+     */
+    public Pipeline borrowPipeline(final CompiledPipeline compiledPipeline)
+    {
+        final Pipeline pipeline = getIdlePipelines(compiledPipeline).poll();
+        if (pipeline != null)
+        {
+            reusedCount.incrementAndGet();
+            return pipeline;
+        }
+
+        createdCount.incrementAndGet();
+        return compiledPipeline.newPipeline();
+    }
+
+    /**
+     * Resets the pipeline and returns it to the pool. The pipeline must not be
+     * used by the caller afterwards, nor the result of its last execution.
+     * This method does not throw if the pipeline cannot be reset, the failure
+     * being reported to the {@link MessageLogger} of the pool instead.
+     */
+    public void releasePipeline(final CompiledPipeline compiledPipeline, final Pipeline pipeline)
+    {
+        if (!pipeline.supportsReset())
+        {
+            return;
+        }
+
+        try
+        {
+            pipeline.reset();
+        }
+        catch (final RuntimeException e)
+        {
+            // The pipeline is discarded
+            resetFailureCount.incrementAndGet();
+            if (messageLogger != null)
+            {
+                messageLogger.log(new ResetFailureMessage(String.format(
+                        "discarding pipeline %s as it cannot be reset: %s", compiledPipeline.getSystemId(), e)));
+            }
+            return;
+        }
+
+        getIdlePipelines(compiledPipeline).offer(pipeline);
+    }
+
+    /**
+     * Discards the idle pipelines of a compiled pipeline that is no longer
+     * used.
+     */
+    public void remove(final CompiledPipeline compiledPipeline)
+    {
+        idlePipelines.remove(compiledPipeline);
+    }
+
+    public void clear()
+    {
+        idlePipelines.clear();
+    }
+
+    public long getCreatedCount()
+    {
+        return createdCount.get();
+    }
+
+    public long getReusedCount()
+    {
+        return reusedCount.get();
+    }
+
+    /**
+     * Returns the number of released pipelines that were discarded because
+     * they failed to reset.
+     */
+    public long getResetFailureCount()
+    {
+        return resetFailureCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[compiledPipelines=%d, created=%d, reused=%d, resetFailures=%d]", getClass()
+                .getSimpleName(), idlePipelines.size(), getCreatedCount(), getReusedCount(), getResetFailureCount());
+    }
+}
@@ -15,20 +15,47 @@
  */
 package org.trancecode.xproc.api;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.stream.StreamResult;
 
 /**
  * Result of a pipeline execution.
+ * <p>
+ * Implementations must allow the documents of different output ports to be
+ * read concurrently from several threads, and the {@link Source} objects they
+ * return to be read concurrently with each other.
  * 
  * @author Herve Quiroz
  */
 public abstract class PipelineResult
 {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAXIMUM_PENDING_DOCUMENTS = 32;
+
     protected PipelineResult()
     {
         // Protected constructor
@@ -36,11 +63,228 @@ public abstract class PipelineResult
 
     public abstract void readDocument(String portName, Result result);
 
+    /**
+     * Writes the document of an output port to a file, compressed with gzip if
+     * the file name has the {@code .gz} extension.
+     */
     public void readDocument(final String name, final File file)
     {
+        if (Archives.isGzipFile(file))
+        {
+            readDocument(name, file, DEFAULT_BUFFER_SIZE);
+            return;
+        }
+
         readDocument(name, new StreamResult(file));
     }
 
+    /**
+     * Writes the document of an output port to a file with a buffer of the
+     * specified size, compressed with gzip if the file name has the
+     * {@code .gz} extension.
+     */
+    public void readDocument(final String name, final File file, final int bufferSize)
+    {
+        try
+        {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(file), bufferSize);
+            try
+            {
+                if (Archives.isGzipFile(file))
+                {
+                    output = new GZIPOutputStream(output, bufferSize);
+                }
+
+                final Result result = new StreamResult(output);
+                result.setSystemId(file.toURI().toString());
+                readDocument(name, result);
+            }
+            finally
+            {
+                output.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new PipelineException(e, "cannot write file %s", file);
+        }
+    }
+
+    /**
+     * Writes the document of an output port to a channel from its current
+     * position, with a buffer of the specified size. The channel is not
+     * closed.
+     */
+    public void readDocument(final String name, final FileChannel channel, final int bufferSize)
+    {
+        final OutputStream output = new BufferedOutputStream(Channels.newOutputStream(channel), bufferSize);
+        readDocument(name, new StreamResult(output));
+        try
+        {
+            output.flush();
+        }
+        catch (final IOException e)
+        {
+            throw new PipelineException(e, "cannot write document from port %s", name);
+        }
+    }
+
+    /**
+     * Writes the documents of an output port to a zip archive, one entry per
+     * document. Entries are named after the system ID of the documents when
+     * available.
+     */
+    public void readDocuments(final String name, final File archive)
+    {
+        try
+        {
+            final ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    archive), DEFAULT_BUFFER_SIZE));
+            try
+            {
+                final Transformer serializer = Serializers.newSerializer();
+                final Set<String> entryNames = new HashSet<String>();
+                for (final Source document : readDocuments(name))
+                {
+                    final String entryName = newEntryName(name, document, entryNames);
+                    output.putNextEntry(new ZipEntry(entryName));
+                    final Result result = new StreamResult(output);
+                    result.setSystemId(archive.toURI().toString() + "!/" + entryName);
+                    serializer.transform(document, result);
+                    output.closeEntry();
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new PipelineException(e, "cannot write archive %s", archive);
+        }
+        catch (final TransformerException e)
+        {
+            throw new PipelineException(e, "cannot write documents from port %s to archive %s", name, archive);
+        }
+    }
+
+    /**
+     * Writes the documents of an output port to a zip archive like
+     * {@link #readDocuments(String, File)}, the documents being serialized
+     * concurrently by the executor. Only a bounded number of serialized
+     * documents are buffered in memory.
+     */
+    public void readDocuments(final String name, final File archive, final Executor executor)
+    {
+        final Queue<FutureTask<byte[]>> pendingDocuments = new LinkedList<FutureTask<byte[]>>();
+        try
+        {
+            final ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    archive), DEFAULT_BUFFER_SIZE));
+            try
+            {
+                final Queue<String> pendingEntryNames = new LinkedList<String>();
+                final Set<String> entryNames = new HashSet<String>();
+                for (final Source document : readDocuments(name))
+                {
+                    final String entryName = newEntryName(name, document, entryNames);
+                    final String systemId = archive.toURI().toString() + "!/" + entryName;
+                    final FutureTask<byte[]> serialization = new FutureTask<byte[]>(new Callable<byte[]>()
+                    {
+                        @Override
+                        public byte[] call() throws TransformerException
+                        {
+                            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                            final Result result = new StreamResult(buffer);
+                            result.setSystemId(systemId);
+                            Serializers.newSerializer().transform(document, result);
+                            return buffer.toByteArray();
+                        }
+                    });
+                    pendingEntryNames.add(entryName);
+                    pendingDocuments.add(serialization);
+                    executor.execute(serialization);
+
+                    if (pendingDocuments.size() >= MAXIMUM_PENDING_DOCUMENTS)
+                    {
+                        writeEntry(output, pendingEntryNames.remove(), pendingDocuments.remove());
+                    }
+                }
+
+                while (!pendingDocuments.isEmpty())
+                {
+                    writeEntry(output, pendingEntryNames.remove(), pendingDocuments.remove());
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new PipelineException(e, "cannot write archive %s", archive);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineException(e, "interrupted while writing archive %s", archive);
+        }
+        catch (final ExecutionException e)
+        {
+            throw new PipelineException(e.getCause(), "cannot write documents from port %s to archive %s", name,
+                    archive);
+        }
+        finally
+        {
+            for (final FutureTask<byte[]> serialization : pendingDocuments)
+            {
+                serialization.cancel(true);
+            }
+        }
+    }
+
+    private static void writeEntry(final ZipOutputStream output, final String entryName,
+            final FutureTask<byte[]> serialization) throws IOException, InterruptedException, ExecutionException
+    {
+        final byte[] content = serialization.get();
+        output.putNextEntry(new ZipEntry(entryName));
+        output.write(content);
+        output.closeEntry();
+    }
+
+    /**
+     * Returns a name not used yet for the entry of a document in an archive.
+     */
+    private static String newEntryName(final String name, final Source document, final Set<String> entryNames)
+    {
+        String entryName = getFileName(document.getSystemId());
+        for (int index = entryNames.size() + 1; entryName == null || entryNames.contains(entryName); index++)
+        {
+            entryName = String.format("%s-%d.xml", name, index);
+        }
+        entryNames.add(entryName);
+
+        return entryName;
+    }
+
+    private static String getFileName(final String systemId)
+    {
+        if (systemId == null)
+        {
+            return null;
+        }
+
+        final String path = systemId.substring(systemId.lastIndexOf('/') + 1);
+        if (path.length() == 0)
+        {
+            return null;
+        }
+
+        return path;
+    }
+
     public void readDocument(final String name, final URI resource)
     {
         readDocument(name, new StreamResult(resource.toString()));
@@ -51,7 +295,30 @@ public abstract class PipelineResult
         readDocument(name, new StreamResult(resource));
     }
 
+    /**
+     * Returns the document of an output port.
+     * <p>
+     * Implementations should return an already parsed document (e.g.
+     * {@link javax.xml.transform.dom.DOMSource} or a {@link Source} wrapping
+     * their native tree) rather than a serialized one, so that the document can
+     * be bound to another pipeline without being parsed again.
+     */
     public abstract Source readDocument(String portName);
 
+    /**
+     * Returns the documents of an output port.
+     * 
+     * @see #readDocument(String)
+     * @see Pipeline#bindInputPort(String, PipelineResult, String)
+     */
     public abstract Iterable<Source> readDocuments(String portName);
+
+    /**
+     * Returns the metrics of the steps run by the pipeline, or {@code null} if
+     * not supported by the implementation.
+     */
+    public StepStatistics getStepStatistics()
+    {
+        return null;
+    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+
+/**
+ * A {@link StepListener} that follows the progress of running pipelines, to be
+ * registered with the {@link XProcProperties#STEP_LISTENER} property and
+ * polled from another thread with {@link #getStatus()}.
+ * <p>
+ * The documents read from input ports are counted as well if the sequences
+ * bound to the ports are wrapped with {@link #count(String, Iterable)}. When
+ * the number of pipeline runs is known (e.g. a batch of files), the remaining
+ * time is estimated from the runs reported with {@link #runCompleted()}.
+ * <p>
+ * The clock starts with {@link #start()}, or else with the first step.
+ * 
+ * @author Herve Quiroz
+ */
+public final class ProgressMonitor implements StepListener
+{
+    private final AtomicLong startTime = new AtomicLong(-1);
+    private final AtomicLong completedRunCount = new AtomicLong();
+    private final AtomicLong expectedRunCount = new AtomicLong(-1);
+    private final AtomicLong startedStepCount = new AtomicLong();
+    private final AtomicLong completedStepCount = new AtomicLong();
+    private final AtomicLong outputDocumentCount = new AtomicLong();
+    private final AtomicLong outputByteCount = new AtomicLong();
+    private final Map<String, AtomicLong> portDocumentCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, Long> portDocumentTotals = new ConcurrentHashMap<String, Long>();
+    private volatile String lastStepName;
+
+    /**
+     * A snapshot of the progress.
+     */
+    public static final class Status
+    {
+        private final long elapsedTime;
+        private final long completedRunCount;
+        private final long expectedRunCount;
+        private final long startedStepCount;
+        private final long completedStepCount;
+        private final long outputDocumentCount;
+        private final long outputByteCount;
+        private final Map<String, Long> portDocumentCounts;
+        private final Map<String, Long> portDocumentTotals;
+        private final String lastStepName;
+
+        private Status(final ProgressMonitor monitor)
+        {
+            final long startTime = monitor.startTime.get();
+            elapsedTime = startTime < 0 ? 0 : System.currentTimeMillis() - startTime;
+            completedRunCount = monitor.completedRunCount.get();
+            expectedRunCount = monitor.expectedRunCount.get();
+            completedStepCount = monitor.completedStepCount.get();
+            startedStepCount = monitor.startedStepCount.get();
+            outputDocumentCount = monitor.outputDocumentCount.get();
+            outputByteCount = monitor.outputByteCount.get();
+            final Map<String, Long> portDocumentCounts = new TreeMap<String, Long>();
+            for (final Map.Entry<String, AtomicLong> port : monitor.portDocumentCounts.entrySet())
+            {
+                portDocumentCounts.put(port.getKey(), port.getValue().get());
+            }
+            this.portDocumentCounts = Collections.unmodifiableMap(portDocumentCounts);
+            portDocumentTotals = Collections.unmodifiableMap(new TreeMap<String, Long>(monitor.portDocumentTotals));
+            lastStepName = monitor.lastStepName;
+        }
+
+        /**
+         * Milliseconds elapsed since the monitor was started.
+         */
+        public long getElapsedTime()
+        {
+            return elapsedTime;
+        }
+
+        public long getCompletedRunCount()
+        {
+            return completedRunCount;
+        }
+
+        /**
+         * Returns the expected number of runs, or {@code -1} if unknown.
+         */
+        public long getExpectedRunCount()
+        {
+            return expectedRunCount;
+        }
+
+        /**
+         * Returns an estimate of the milliseconds left until all the expected
+         * runs are completed, or {@code -1} if unknown.
+         */
+        public long getEstimatedRemainingTime()
+        {
+            if (expectedRunCount < 0 || completedRunCount == 0)
+            {
+                return -1;
+            }
+
+            return Math.max(0, expectedRunCount - completedRunCount) * elapsedTime / completedRunCount;
+        }
+
+        public long getCompletedStepCount()
+        {
+            return completedStepCount;
+        }
+
+        public long getRunningStepCount()
+        {
+            return startedStepCount - completedStepCount;
+        }
+
+        public long getOutputDocumentCount()
+        {
+            return outputDocumentCount;
+        }
+
+        public long getOutputByteCount()
+        {
+            return outputByteCount;
+        }
+
+        /**
+         * Returns the number of documents read so far from each counted input
+         * port.
+         */
+        public Map<String, Long> getPortDocumentCounts()
+        {
+            return portDocumentCounts;
+        }
+
+        /**
+         * Returns the number of documents bound to each counted input port,
+         * when known.
+         */
+        public Map<String, Long> getPortDocumentTotals()
+        {
+            return portDocumentTotals;
+        }
+
+        public String getLastStepName()
+        {
+            return lastStepName;
+        }
+
+        /**
+         * Returns the number of steps completed per second.
+         */
+        public double getStepRate()
+        {
+            return completedStepCount * 1000.0 / Math.max(1, elapsedTime);
+        }
+
+        /**
+         * Returns the number of documents produced by the steps per second.
+         */
+        public double getDocumentRate()
+        {
+            return outputDocumentCount * 1000.0 / Math.max(1, elapsedTime);
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder buffer = new StringBuilder();
+            buffer.append(String.format("%.1f s: %d steps completed (%.1f/s), %d running, %d documents (%.1f/s)",
+                    elapsedTime / 1000.0, completedStepCount, getStepRate(), getRunningStepCount(),
+                    outputDocumentCount, getDocumentRate()));
+            if (expectedRunCount >= 0)
+            {
+                buffer.append(String.format(", runs: %d/%d", completedRunCount, expectedRunCount));
+                if (getEstimatedRemainingTime() >= 0)
+                {
+                    buffer.append(String.format(" (about %.0f s left)", getEstimatedRemainingTime() / 1000.0));
+                }
+            }
+            for (final Map.Entry<String, Long> port : portDocumentCounts.entrySet())
+            {
+                buffer.append(", ").append(port.getKey()).append(": ").append(port.getValue());
+                final Long total = portDocumentTotals.get(port.getKey());
+                if (total != null)
+                {
+                    buffer.append("/").append(total);
+                }
+            }
+            if (lastStepName != null)
+            {
+                buffer.append(", last step: ").append(lastStepName);
+            }
+
+            return buffer.toString();
+        }
+    }
+
+    /**
+     * Starts the clock, e.g. once the pipeline is compiled.
+     */
+    public void start()
+    {
+        startTime.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Sets the number of pipeline runs expected, so that the remaining time
+     * can be estimated.
+     */
+    public void setExpectedRunCount(final long count)
+    {
+        expectedRunCount.set(count);
+    }
+
+    /**
+     * Reports that a pipeline run is completed, whether it succeeded or not.
+     */
+    public void runCompleted()
+    {
+        completedRunCount.incrementAndGet();
+    }
+
+    @Override
+    public void stepStarted(final StepEvent event)
+    {
+        startTime.compareAndSet(-1, System.currentTimeMillis());
+        startedStepCount.incrementAndGet();
+        lastStepName = event.getStepName();
+    }
+
+    @Override
+    public void stepFinished(final StepEvent event)
+    {
+        completedStepCount.incrementAndGet();
+        if (event.getOutputDocumentCount() > 0)
+        {
+            outputDocumentCount.addAndGet(event.getOutputDocumentCount());
+        }
+        if (event.getOutputByteCount() > 0)
+        {
+            outputByteCount.addAndGet(event.getOutputByteCount());
+        }
+    }
+
+    /**
+     * Returns a view of the sequence that counts the documents as they are
+     * read, to be bound to the specified input port. The total number of
+     * documents is reported as well if the sequence is a {@link Collection}.
+     */
+    public Iterable<Source> count(final String portName, final Iterable<Source> sources)
+    {
+        final AtomicLong documentCount;
+        synchronized (portDocumentCounts)
+        {
+            if (!portDocumentCounts.containsKey(portName))
+            {
+                portDocumentCounts.put(portName, new AtomicLong());
+            }
+            documentCount = portDocumentCounts.get(portName);
+
+            if (sources instanceof Collection)
+            {
+                final Long total = portDocumentTotals.get(portName);
+                final long size = ((Collection<Source>) sources).size();
+                portDocumentTotals.put(portName, total == null ? size : total + size);
+            }
+        }
+
+        return Iterables.transform(sources, new Iterables.Function<Source, Source>()
+        {
+            @Override
+            public Source apply(final Source source)
+            {
+                documentCount.incrementAndGet();
+                return source;
+            }
+        });
+    }
+
+    public Status getStatus()
+    {
+        return new Status(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        return getStatus().toString();
+    }
+}
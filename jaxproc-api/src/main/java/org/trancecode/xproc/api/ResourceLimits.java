@@ -0,0 +1,201 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import org.trancecode.xproc.api.PipelineLimitException.Limit;
+
+/**
+ * Limits of the executions of the pipelines created by a
+ * {@link PipelineFactory}, read from the {@link XProcProperties#TIMEOUT},
+ * {@link XProcProperties#MAXIMUM_OUTPUT_DOCUMENTS},
+ * {@link XProcProperties#MAXIMUM_PORT_BYTES} and
+ * {@link XProcProperties#MAXIMUM_CONCURRENT_RUNS} properties. Values are
+ * either {@link Number} objects or strings, and missing properties mean no
+ * limit. The maximum number of concurrent executions must be set before the
+ * limits are first used; changes of the other limits are taken into account.
+ * <p>
+ * Limits are enforced cooperatively by implementations, which call the
+ * {@code check} methods while running and throw a
+ * {@link PipelineLimitException} when a limit is exceeded.
+ * 
+ * @see PipelineFactory#getResourceLimits()
+ * @author Herve Quiroz
+ */
+public final class ResourceLimits
+{
+    public static final long UNLIMITED = -1;
+
+    private volatile long timeout;
+    private volatile long maximumOutputDocuments;
+    private volatile long maximumPortBytes;
+    private final long maximumConcurrentRuns;
+    private final Semaphore runs;
+
+    public ResourceLimits(final Map<String, Object> properties)
+    {
+        update(properties);
+        maximumConcurrentRuns = getLimit(properties, XProcProperties.MAXIMUM_CONCURRENT_RUNS);
+        if (maximumConcurrentRuns == UNLIMITED)
+        {
+            runs = null;
+        }
+        else
+        {
+            runs = new Semaphore((int) Math.min(Integer.MAX_VALUE, maximumConcurrentRuns));
+        }
+    }
+
+    /**
+     * Reads the limits again from the properties, except the maximum number of
+     * concurrent executions which is only read once, so that all the
+     * executions share the same count. The limits are left unchanged if any
+     * of the values is invalid.
+     */
+    void update(final Map<String, Object> properties)
+    {
+        validate(properties);
+        timeout = getLimit(properties, XProcProperties.TIMEOUT);
+        maximumOutputDocuments = getLimit(properties, XProcProperties.MAXIMUM_OUTPUT_DOCUMENTS);
+        maximumPortBytes = getLimit(properties, XProcProperties.MAXIMUM_PORT_BYTES);
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the value of any of the limits is invalid
+     */
+    static void validate(final Map<String, Object> properties)
+    {
+        getLimit(properties, XProcProperties.TIMEOUT);
+        getLimit(properties, XProcProperties.MAXIMUM_OUTPUT_DOCUMENTS);
+        getLimit(properties, XProcProperties.MAXIMUM_PORT_BYTES);
+        getLimit(properties, XProcProperties.MAXIMUM_CONCURRENT_RUNS);
+    }
+
+    private static long getLimit(final Map<String, Object> properties, final String property)
+    {
+        final Object value = properties.get(property);
+        if (value == null)
+        {
+            return UNLIMITED;
+        }
+
+        final long limit;
+        try
+        {
+            limit = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+        }
+        catch (final NumberFormatException e)
+        {
+            throw new IllegalArgumentException(String.format("invalid value for property %s: %s", property, value), e);
+        }
+
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException(String.format("invalid value for property %s: %s", property, value));
+        }
+
+        return limit;
+    }
+
+    /**
+     * Returns the maximum duration of an execution in milliseconds, or
+     * {@link #UNLIMITED}.
+     */
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    public long getMaximumOutputDocuments()
+    {
+        return maximumOutputDocuments;
+    }
+
+    public long getMaximumPortBytes()
+    {
+        return maximumPortBytes;
+    }
+
+    public long getMaximumConcurrentRuns()
+    {
+        return maximumConcurrentRuns;
+    }
+
+    /**
+     * Registers the start of an execution, to be matched by a call to
+     * {@link #endRun()} once it completes.
+     * 
+     * @throws PipelineLimitException
+     *             if the maximum number of concurrent executions is reached
+     */
+    public void startRun()
+    {
+        if (runs != null && !runs.tryAcquire())
+        {
+            throw new PipelineLimitException(Limit.CONCURRENT_RUNS, maximumConcurrentRuns,
+                    "maximum number of concurrent executions reached: %s", maximumConcurrentRuns);
+        }
+    }
+
+    public void endRun()
+    {
+        if (runs != null)
+        {
+            runs.release();
+        }
+    }
+
+    /**
+     * @param startTime
+     *            the start time of the execution, as returned by
+     *            {@link System#currentTimeMillis()}
+     */
+    public void checkTimeout(final long startTime)
+    {
+        if (timeout != UNLIMITED && System.currentTimeMillis() - startTime > timeout)
+        {
+            throw new PipelineLimitException(Limit.TIMEOUT, timeout, "execution timed out after %s ms", timeout);
+        }
+    }
+
+    public void checkOutputDocuments(final String portName, final long documentCount)
+    {
+        if (maximumOutputDocuments != UNLIMITED && documentCount > maximumOutputDocuments)
+        {
+            throw new PipelineLimitException(Limit.OUTPUT_DOCUMENTS, maximumOutputDocuments,
+                    "too many documents on port %s: %s > %s", portName, documentCount, maximumOutputDocuments);
+        }
+    }
+
+    public void checkPortBytes(final String portName, final long byteCount)
+    {
+        if (maximumPortBytes != UNLIMITED && byteCount > maximumPortBytes)
+        {
+            throw new PipelineLimitException(Limit.PORT_BYTES, maximumPortBytes,
+                    "too many bytes buffered on port %s: %s > %s", portName, byteCount, maximumPortBytes);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[timeout=%d, outputDocuments=%d, portBytes=%d, concurrentRuns=%d]", getClass()
+                .getSimpleName(), timeout, maximumOutputDocuments, maximumPortBytes, maximumConcurrentRuns);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Creates identity {@link Transformer} objects from a shared
+ * {@link TransformerFactory}, so that the factory is looked up only once.
+ * 
+ * @author Herve Quiroz
+ */
+final class Serializers
+{
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+
+    private Serializers()
+    {
+        // No instantiation
+    }
+
+    /**
+     * @throws PipelineException
+     */
+    public static Transformer newSerializer()
+    {
+        // TransformerFactory objects are not thread-safe
+        synchronized (TRANSFORMER_FACTORY)
+        {
+            try
+            {
+                return TRANSFORMER_FACTORY.newTransformer();
+            }
+            catch (final TransformerConfigurationException e)
+            {
+                throw new PipelineException(e, "cannot create serializer");
+            }
+        }
+    }
+}
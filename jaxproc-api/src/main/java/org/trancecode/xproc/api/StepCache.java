@@ -0,0 +1,50 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import javax.xml.transform.Source;
+
+/**
+ * Stores the outputs of step executions, so that a step run again with the
+ * same inputs and options reuses them instead of being executed. Step caches
+ * are registered using the {@link XProcProperties#STEP_CACHE} property.
+ * <p>
+ * Implementations of the API compute the key of each step execution with a
+ * {@link StepDigest}, look up each output port of the step before running it,
+ * and store the outputs once it has completed. Steps that have side effects
+ * or whose result does not only depend on their inputs and options (e.g.
+ * {@code p:http-request}) should never be cached.
+ * <p>
+ * Step caches may be called concurrently and must be thread-safe.
+ * 
+ * @see FileStepCache
+ * @author Herve Quiroz
+ */
+public interface StepCache
+{
+    /**
+     * Returns the documents produced on an output port by a previous execution
+     * of the step, or {@code null} if there is none.
+     */
+    Iterable<Source> getOutputs(String key, String portName);
+
+    /**
+     * Stores the documents produced on an output port. The documents are read
+     * once, so implementations of the API should pass documents that can be
+     * read again afterwards (e.g. {@link javax.xml.transform.dom.DOMSource}).
+     */
+    void putOutputs(String key, String portName, Iterable<Source> documents);
+}
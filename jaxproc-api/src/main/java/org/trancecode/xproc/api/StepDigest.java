@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Computes the {@link StepCache} key of a step execution from the processor
+ * name and version, the type of the step, its options and the base URI and
+ * content of the documents on its input ports.
+ * <p>
+ * Options and ports may be added in any order, but the documents of a port
+ * must be added in sequence order. Documents and option values that are nodes
+ * are serialized to compute their digest, except {@link StreamSource} objects
+ * with only a system ID, whose content is read as is. Other stream sources are
+ * consumed.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StepDigest
+{
+    private static final String ALGORITHM = "SHA-1";
+
+    private final String processor;
+    private final QName stepType;
+    private final Map<String, String> options = new TreeMap<String, String>();
+    private final Map<String, MessageDigest> inputs = new TreeMap<String, MessageDigest>();
+    private Transformer serializer;
+
+    /**
+     * @param factory
+     *            the factory of the running pipeline, whose class and version
+     *            are part of the key so that outputs of other processors are
+     *            not reused
+     */
+    public StepDigest(final PipelineFactory factory, final QName stepType)
+    {
+        processor = factory.getClass().getName() + " " + factory.getVersion();
+        this.stepType = stepType;
+    }
+
+    /**
+     * Adds an option whose value is either an atomic value (string, number,
+     * boolean, {@link QName} or {@link URI}) or a {@link Node} or
+     * {@link NodeList}.
+     * 
+     * @throws IllegalArgumentException
+     *             if the value is of another type
+     */
+    public StepDigest addOption(final QName name, final Object value)
+    {
+        if (value instanceof CharSequence || value instanceof Number || value instanceof Boolean
+                || value instanceof QName || value instanceof URI)
+        {
+            options.put(name.toString(), "atomic:" + value);
+        }
+        else if (value instanceof Node)
+        {
+            final MessageDigest digest = newDigest();
+            update(digest, (Node) value);
+            options.put(name.toString(), "node:" + toHexString(digest.digest()));
+        }
+        else if (value instanceof NodeList)
+        {
+            final NodeList nodes = (NodeList) value;
+            final MessageDigest digest = newDigest();
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                digest.update((byte) 0);
+                update(digest, nodes.item(i));
+            }
+            options.put(name.toString(), "nodes:" + toHexString(digest.digest()));
+        }
+        else
+        {
+            throw new IllegalArgumentException(String.format("unsupported value for option %s: %s", name,
+                    value == null ? null : value.getClass().getName()));
+        }
+
+        return this;
+    }
+
+    private void update(final MessageDigest digest, final Node node)
+    {
+        if (node instanceof Attr)
+        {
+            // Attributes cannot be serialized on their own
+            final String localName = node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+            update(digest, "{" + node.getNamespaceURI() + "}" + localName + "=" + node.getNodeValue());
+        }
+        else
+        {
+            update(digest, new DOMSource(node));
+        }
+    }
+
+    private Transformer getSerializer()
+    {
+        if (serializer == null)
+        {
+            serializer = Serializers.newSerializer();
+        }
+
+        return serializer;
+    }
+
+    private MessageDigest getInputDigest(final String portName)
+    {
+        MessageDigest digest = inputs.get(portName);
+        if (digest == null)
+        {
+            digest = newDigest();
+            inputs.put(portName, digest);
+        }
+
+        return digest;
+    }
+
+    public StepDigest addInput(final String portName, final Source document)
+    {
+        final MessageDigest digest = getInputDigest(portName);
+        // Separates the documents of a sequence
+        digest.update((byte) 0);
+        // The base URI may change the outputs (e.g. p:base-uri() or relative URIs)
+        update(digest, String.valueOf(getBaseUri(document)));
+        update(digest, document);
+        return this;
+    }
+
+    /**
+     * Adds the documents of an input port. An empty sequence is recorded as
+     * well.
+     */
+    public StepDigest addInputs(final String portName, final Iterable<Source> documents)
+    {
+        getInputDigest(portName);
+        for (final Source document : documents)
+        {
+            addInput(portName, document);
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns the system ID of the document, or the base URI of the node of a
+     * {@link DOMSource} without system ID.
+     */
+    static String getBaseUri(final Source document)
+    {
+        if (document.getSystemId() == null && document instanceof DOMSource
+                && ((DOMSource) document).getNode() != null)
+        {
+            return ((DOMSource) document).getNode().getBaseURI();
+        }
+
+        return document.getSystemId();
+    }
+
+    private void update(final MessageDigest digest, final Source document)
+    {
+        final OutputStream output = new DigestOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(final int b)
+            {
+                // Only the digest is needed
+            }
+
+            @Override
+            public void write(final byte[] bytes, final int offset, final int length)
+            {
+                // Only the digest is needed
+            }
+        }, digest);
+
+        try
+        {
+            if (document instanceof StreamSource && ((StreamSource) document).getInputStream() == null
+                    && ((StreamSource) document).getReader() == null && document.getSystemId() != null)
+            {
+                final InputStream input = URI.create(document.getSystemId()).toURL().openStream();
+                try
+                {
+                    final byte[] buffer = new byte[8192];
+                    for (int count = input.read(buffer); count >= 0; count = input.read(buffer))
+                    {
+                        output.write(buffer, 0, count);
+                    }
+                }
+                finally
+                {
+                    input.close();
+                }
+            }
+            else
+            {
+                getSerializer().transform(document, new StreamResult(output));
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new PipelineException(e, "cannot read document %s", document.getSystemId());
+        }
+        catch (final TransformerException e)
+        {
+            throw new PipelineException(e, "cannot serialize document %s", document.getSystemId());
+        }
+    }
+
+    /**
+     * Returns the key of the step execution, as a hexadecimal string.
+     */
+    public String getKey()
+    {
+        final MessageDigest digest = newDigest();
+        update(digest, processor);
+        update(digest, stepType.toString());
+        for (final Map.Entry<String, String> option : options.entrySet())
+        {
+            update(digest, option.getKey());
+            update(digest, option.getValue());
+        }
+        for (final Map.Entry<String, MessageDigest> input : inputs.entrySet())
+        {
+            update(digest, input.getKey());
+            try
+            {
+                // Keeps the digest of the port usable if more documents are added
+                digest.update(((MessageDigest) input.getValue().clone()).digest());
+            }
+            catch (final CloneNotSupportedException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return toHexString(digest.digest());
+    }
+
+    private static String toHexString(final byte[] bytes)
+    {
+        final StringBuilder buffer = new StringBuilder();
+        for (final byte b : bytes)
+        {
+            buffer.append(String.format("%02x", b & 0xff));
+        }
+
+        return buffer.toString();
+    }
+
+    private static void update(final MessageDigest digest, final String value)
+    {
+        try
+        {
+            final byte[] bytes = value.getBytes("UTF-8");
+            digest.update((byte) (bytes.length >>> 24));
+            digest.update((byte) (bytes.length >>> 16));
+            digest.update((byte) (bytes.length >>> 8));
+            digest.update((byte) bytes.length);
+            digest.update(bytes);
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[%s, %s, options=%s, inputs=%s]", getClass().getSimpleName(), processor, stepType,
+                options, inputs.keySet());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+
+/**
+ * Receives the start and end of each step run by a pipeline, together with
+ * execution metrics. Implementations are registered using the
+ * {@link XProcProperties#STEP_LISTENER} property.
+ * <p>
+ * Steps may run concurrently, so listeners must be thread-safe. Metrics that
+ * are not known or not supported by the implementation are reported as
+ * {@code -1}.
+ * 
+ * @see StepStatistics
+ * @author Herve Quiroz
+ */
+public interface StepListener
+{
+    interface StepEvent
+    {
+        String getStepName();
+
+        /**
+         * Returns the names of the ancestors of the step and of the step
+         * itself, separated by {@code /} (e.g. {@code main/loop/transform}),
+         * which identifies the step within the pipeline.
+         */
+        String getStepPath();
+
+        QName getStepType();
+
+        Location getLocation();
+
+        /**
+         * Milliseconds since the epoch, as {@link System#currentTimeMillis()}.
+         */
+        long getStartTime();
+
+        long getEndTime();
+
+        /**
+         * CPU time spent by the step, in nanoseconds.
+         */
+        long getCpuTime();
+
+        long getInputDocumentCount();
+
+        long getOutputDocumentCount();
+
+        long getInputByteCount();
+
+        long getOutputByteCount();
+
+        /**
+         * Estimate of the memory allocated by the step, in bytes.
+         */
+        long getAllocatedByteCount();
+    }
+
+    void stepStarted(StepEvent event);
+
+    void stepFinished(StepEvent event);
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.trancecode.xproc.api.StepListener.StepEvent;
+
+/**
+ * A {@link StepListener} that sums up the metrics of the steps by
+ * {@link StepEvent#getStepPath() step path}.
+ * <p>
+ * It can be registered as {@link XProcProperties#STEP_LISTENER} to find out
+ * where the time goes within a pipeline, and it is also the summary returned by
+ * {@link PipelineResult#getStepStatistics()}. Instances of this class are
+ * thread-safe.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StepStatistics implements StepListener
+{
+    private final ConcurrentMap<String, Step> steps = new ConcurrentHashMap<String, Step>();
+
+    /**
+     * Metrics of all the runs of a step.
+     */
+    public static final class Step
+    {
+        private final String path;
+        private final String name;
+        private int runCount;
+        private long duration;
+        private long cpuTime;
+        private long inputDocumentCount;
+        private long outputDocumentCount;
+        private long inputByteCount;
+        private long outputByteCount;
+        private long allocatedByteCount;
+
+        private Step(final String path, final String name)
+        {
+            this.path = path;
+            this.name = name;
+        }
+
+        /**
+         * Returns a copy of the current metrics, which is not updated anymore.
+         */
+        private synchronized Step snapshot()
+        {
+            final Step step = new Step(path, name);
+            step.runCount = runCount;
+            step.duration = duration;
+            step.cpuTime = cpuTime;
+            step.inputDocumentCount = inputDocumentCount;
+            step.outputDocumentCount = outputDocumentCount;
+            step.inputByteCount = inputByteCount;
+            step.outputByteCount = outputByteCount;
+            step.allocatedByteCount = allocatedByteCount;
+            return step;
+        }
+
+        private static long add(final long total, final long value)
+        {
+            if (value < 0)
+            {
+                return total;
+            }
+
+            return total + value;
+        }
+
+        private synchronized void add(final StepEvent event)
+        {
+            runCount++;
+            if (event.getEndTime() >= 0 && event.getStartTime() >= 0)
+            {
+                duration += event.getEndTime() - event.getStartTime();
+            }
+            cpuTime = add(cpuTime, event.getCpuTime());
+            inputDocumentCount = add(inputDocumentCount, event.getInputDocumentCount());
+            outputDocumentCount = add(outputDocumentCount, event.getOutputDocumentCount());
+            inputByteCount = add(inputByteCount, event.getInputByteCount());
+            outputByteCount = add(outputByteCount, event.getOutputByteCount());
+            allocatedByteCount = add(allocatedByteCount, event.getAllocatedByteCount());
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public synchronized int getRunCount()
+        {
+            return runCount;
+        }
+
+        /**
+         * Total wall-clock time, in milliseconds.
+         */
+        public synchronized long getDuration()
+        {
+            return duration;
+        }
+
+        /**
+         * Total CPU time, in nanoseconds.
+         */
+        public synchronized long getCpuTime()
+        {
+            return cpuTime;
+        }
+
+        public synchronized long getInputDocumentCount()
+        {
+            return inputDocumentCount;
+        }
+
+        public synchronized long getOutputDocumentCount()
+        {
+            return outputDocumentCount;
+        }
+
+        public synchronized long getInputByteCount()
+        {
+            return inputByteCount;
+        }
+
+        public synchronized long getOutputByteCount()
+        {
+            return outputByteCount;
+        }
+
+        public synchronized long getAllocatedByteCount()
+        {
+            return allocatedByteCount;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return String.format("%s: %d runs, %d ms, %d ms CPU, documents %d/%d, bytes %d/%d, %d bytes allocated",
+                    path, runCount, duration, cpuTime / 1000000, inputDocumentCount, outputDocumentCount,
+                    inputByteCount, outputByteCount, allocatedByteCount);
+        }
+    }
+
+    @Override
+    public void stepStarted(final StepEvent event)
+    {
+        // Metrics are only known once the step is finished
+    }
+
+    @Override
+    public void stepFinished(final StepEvent event)
+    {
+        Step step = steps.get(event.getStepPath());
+        if (step == null)
+        {
+            final Step newStep = new Step(event.getStepPath(), event.getStepName());
+            step = steps.putIfAbsent(event.getStepPath(), newStep);
+            if (step == null)
+            {
+                step = newStep;
+            }
+        }
+
+        step.add(event);
+    }
+
+    /**
+     * Returns the live metrics of a step, which are updated as long as the
+     * pipeline runs.
+     */
+    public Step getStep(final String path)
+    {
+        return steps.get(path);
+    }
+
+    /**
+     * Returns a snapshot of the steps, the most time-consuming first.
+     */
+    public List<Step> getSteps()
+    {
+        final List<Step> sortedSteps = new ArrayList<Step>(steps.size());
+        for (final Step step : steps.values())
+        {
+            sortedSteps.add(step.snapshot());
+        }
+
+        // Snapshots are not updated anymore, so the order is consistent
+        Collections.sort(sortedSteps, new Comparator<Step>()
+        {
+            @Override
+            public int compare(final Step step1, final Step step2)
+            {
+                final long duration1 = step1.duration;
+                final long duration2 = step2.duration;
+                return duration1 < duration2 ? 1 : (duration1 == duration2 ? 0 : -1);
+            }
+        });
+
+        return sortedSteps;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder buffer = new StringBuilder();
+        for (final Step step : getSteps())
+        {
+            buffer.append(step).append("\n");
+        }
+
+        return buffer.toString();
+    }
+}
@@ -23,6 +23,43 @@ public final class XProcProperties
     public static final String MESSAGE_LOGGER = "org.trancecode.xproc.api.MessageLogger";
     public static final String URI_RESOLVER = "javax.xml.transform.URIResolver";
 
+    /**
+     * A {@link StepListener} notified of each step execution. Several
+     * listeners are registered with
+     * {@link PipelineFactory#addStepListener(StepListener)}.
+     */
+    public static final String STEP_LISTENER = "org.trancecode.xproc.api.StepListener";
+
+    /**
+     * Maximum duration of an execution, in milliseconds.
+     * 
+     * @see ResourceLimits
+     */
+    public static final String TIMEOUT = "org.trancecode.xproc.api.timeout";
+
+    /**
+     * Maximum number of documents written to each output port by an
+     * execution.
+     */
+    public static final String MAXIMUM_OUTPUT_DOCUMENTS = "org.trancecode.xproc.api.maximumOutputDocuments";
+
+    /**
+     * Maximum number of bytes buffered for each port by an execution.
+     */
+    public static final String MAXIMUM_PORT_BYTES = "org.trancecode.xproc.api.maximumPortBytes";
+
+    /**
+     * Maximum number of executions running at the same time for pipelines
+     * created by the same factory.
+     */
+    public static final String MAXIMUM_CONCURRENT_RUNS = "org.trancecode.xproc.api.maximumConcurrentRuns";
+
+    /**
+     * A {@link StepCache} from which the outputs of steps whose inputs and
+     * options did not change are reused.
+     */
+    public static final String STEP_CACHE = "org.trancecode.xproc.api.StepCache";
+
     private XProcProperties()
     {
         // No instantiation
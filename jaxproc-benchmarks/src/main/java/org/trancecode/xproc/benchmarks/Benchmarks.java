@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.trancecode.xproc.api.PipelineFactory;
+
+/**
+ * Utility methods shared by the benchmarks.
+ * 
+ * @author Herve Quiroz
+ */
+final class Benchmarks
+{
+    private static final String IDENTITY_PIPELINE = "<p:declare-step xmlns:p=\"http://www.w3.org/ns/xproc\""
+            + " version=\"1.0\">\n"
+            + "  <p:input port=\"" + IdentityPipelineFactory.SOURCE_PORT + "\" sequence=\"true\"/>\n"
+            + "  <p:output port=\"" + IdentityPipelineFactory.RESULT_PORT + "\" sequence=\"true\"/>\n"
+            + "  <p:identity/>\n"
+            + "</p:declare-step>\n";
+
+    private Benchmarks()
+    {
+        // No instantiation
+    }
+
+    /**
+     * Returns the class name of the {@link PipelineFactory} to benchmark: the
+     * specified one, else the one found on the classpath, else
+     * {@link IdentityPipelineFactory}.
+     */
+    public static String getPipelineFactoryClassName(final String className)
+    {
+        if (className.length() > 0)
+        {
+            return className;
+        }
+
+        try
+        {
+            return PipelineFactory.newInstance().getClass().getName();
+        }
+        catch (final IllegalStateException e)
+        {
+            return IdentityPipelineFactory.class.getName();
+        }
+    }
+
+    public static PipelineFactory newPipelineFactory(final String className)
+    {
+        return PipelineFactory.newInstance(getPipelineFactoryClassName(className));
+    }
+
+    public static File newTemporaryDirectory() throws IOException
+    {
+        final File directory = File.createTempFile("jaxproc-benchmarks", "");
+        if (!directory.delete() || !directory.mkdir())
+        {
+            throw new IOException("cannot create directory " + directory);
+        }
+
+        return directory;
+    }
+
+    public static void delete(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (final File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(final File file, final String content) throws IOException
+    {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            writer.write(content);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes a pipeline that copies its {@code source} port to its
+     * {@code result} port.
+     */
+    public static File writeIdentityPipeline(final File directory) throws IOException
+    {
+        final File file = new File(directory, "identity.xpl");
+        write(file, IDENTITY_PIPELINE);
+        return file;
+    }
+
+    /**
+     * Writes an XML document of approximately the specified size.
+     */
+    public static File writeDocument(final File directory, final String name, final int sizeInKilobytes)
+            throws IOException
+    {
+        final StringBuilder document = new StringBuilder("<document>\n");
+        for (int i = 0; i < sizeInKilobytes * 16; i++)
+        {
+            document.append("  <item id=\"").append(i).append("\">lorem ipsum dolor sit amet</item>\n");
+        }
+        document.append("</document>\n");
+
+        final File file = new File(directory, name);
+        write(file, document.toString());
+        return file;
+    }
+
+    public static final OutputStream NULL_OUTPUT_STREAM = new OutputStream()
+    {
+        @Override
+        public void write(final int b)
+        {
+            // Discarded
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+        {
+            // Discarded
+        }
+    };
+}
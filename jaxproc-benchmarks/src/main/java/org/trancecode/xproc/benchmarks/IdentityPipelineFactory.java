@@ -0,0 +1,244 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+
+import org.trancecode.xproc.api.CompiledPipeline;
+import org.trancecode.xproc.api.Pipeline;
+import org.trancecode.xproc.api.PipelineException;
+import org.trancecode.xproc.api.PipelineFactory;
+import org.trancecode.xproc.api.PipelineResult;
+import org.w3c.dom.Node;
+
+/**
+ * Trivial {@link PipelineFactory} used as a baseline by the benchmarks: whatever
+ * the pipeline source, the created pipelines copy the documents of the
+ * {@value #SOURCE_PORT} input port to the {@value #RESULT_PORT} output port.
+ * 
+ * @author Herve Quiroz
+ */
+public final class IdentityPipelineFactory extends PipelineFactory
+{
+    public static final String SOURCE_PORT = "source";
+    public static final String RESULT_PORT = "result";
+
+    private final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    private Transformer newTransformer()
+    {
+        try
+        {
+            synchronized (transformerFactory)
+            {
+                return transformerFactory.newTransformer();
+            }
+        }
+        catch (final TransformerException e)
+        {
+            throw new PipelineException(e, "cannot create identity transformer");
+        }
+    }
+
+    private void copy(final Source source, final Result result)
+    {
+        try
+        {
+            newTransformer().transform(source, result);
+        }
+        catch (final TransformerException e)
+        {
+            throw new PipelineException(e, "cannot copy document %s", source.getSystemId());
+        }
+    }
+
+    private final class IdentityPipeline extends Pipeline
+    {
+        private final Map<String, Iterable<Source>> inputPorts = new HashMap<String, Iterable<Source>>();
+        private final Map<String, Result> outputPorts = new HashMap<String, Result>();
+
+        @Override
+        public void setParameter(final QName name, final Object value)
+        {
+            // Ignored
+        }
+
+        @Override
+        public void setOption(final QName name, final Object value)
+        {
+            // Ignored
+        }
+
+        @Override
+        public void bindInputPort(final String name, final Iterable<Source> sources)
+        {
+            inputPorts.put(name, sources);
+        }
+
+        @Override
+        public void bindOutputPort(final String name, final Result result)
+        {
+            outputPorts.put(name, result);
+        }
+
+        @Override
+        public PipelineResult execute()
+        {
+            final List<Node> documents = new ArrayList<Node>();
+            if (inputPorts.containsKey(SOURCE_PORT))
+            {
+                for (final Source source : inputPorts.get(SOURCE_PORT))
+                {
+                    final DOMResult document = new DOMResult();
+                    copy(source, document);
+                    documents.add(document.getNode());
+                }
+            }
+
+            final IdentityPipelineResult result = new IdentityPipelineResult(documents);
+            if (outputPorts.containsKey(RESULT_PORT))
+            {
+                result.readDocument(RESULT_PORT, outputPorts.get(RESULT_PORT));
+            }
+
+            return result;
+        }
+    }
+
+    private final class IdentityPipelineResult extends PipelineResult
+    {
+        private final List<Node> documents;
+
+        public IdentityPipelineResult(final List<Node> documents)
+        {
+            this.documents = documents;
+        }
+
+        private void checkPort(final String portName)
+        {
+            if (!RESULT_PORT.equals(portName))
+            {
+                throw new PipelineException("no such output port: %s", portName);
+            }
+        }
+
+        @Override
+        public void readDocument(final String portName, final Result result)
+        {
+            copy(readDocument(portName), result);
+        }
+
+        @Override
+        public Source readDocument(final String portName)
+        {
+            checkPort(portName);
+            if (documents.isEmpty())
+            {
+                throw new PipelineException("no document on port %s", portName);
+            }
+
+            return new DOMSource(documents.get(0));
+        }
+
+        @Override
+        public Iterable<Source> readDocuments(final String portName)
+        {
+            checkPort(portName);
+            final List<Source> sources = new ArrayList<Source>(documents.size());
+            for (final Node document : documents)
+            {
+                sources.add(new DOMSource(document));
+            }
+
+            return Collections.unmodifiableList(sources);
+        }
+    }
+
+    @Override
+    public Pipeline newPipeline(final Source pipelineSource)
+    {
+        return new IdentityPipeline();
+    }
+
+    @Override
+    public CompiledPipeline newCompiledPipeline(final Source pipelineSource)
+    {
+        final String systemId = pipelineSource.getSystemId();
+        return new CompiledPipeline()
+        {
+            @Override
+            public String getSystemId()
+            {
+                return systemId;
+            }
+
+            @Override
+            public Pipeline newPipeline()
+            {
+                return new IdentityPipeline();
+            }
+        };
+    }
+
+    @Override
+    public String getVersion()
+    {
+        return "0.1.0-SNAPSHOT";
+    }
+
+    @Override
+    public String getXProcVersion()
+    {
+        return "1.0";
+    }
+
+    @Override
+    public String getXPathVersion()
+    {
+        return "1.0";
+    }
+
+    @Override
+    public String getProductName()
+    {
+        return "JAXProc identity pipeline";
+    }
+
+    @Override
+    public String getVendor()
+    {
+        return "TranceCode";
+    }
+
+    @Override
+    public String getVendorUri()
+    {
+        return "http://www.trancecode.org/";
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.trancecode.xproc.api.Pipeline;
+import org.trancecode.xproc.api.PipelineResult;
+
+/**
+ * Measures the overhead of binding an input port to many files with
+ * {@link Pipeline#bindInputPortToFiles(String, Iterable)}: the bound sequence
+ * is iterated and each document is opened, but not parsed. As the binding is
+ * done by the API, the pipeline only records the bound sequence.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InputBindingBenchmark
+{
+    @Param({ "1000", "100000" })
+    public int fileCount;
+
+    private File directory;
+    private final List<File> files = new ArrayList<File>();
+
+    /**
+     * Only records the sequence bound to its input port.
+     */
+    private static final class RecordingPipeline extends Pipeline
+    {
+        private Iterable<Source> sources;
+
+        @Override
+        public void setParameter(final QName name, final Object value)
+        {
+            // Ignored
+        }
+
+        @Override
+        public void setOption(final QName name, final Object value)
+        {
+            // Ignored
+        }
+
+        @Override
+        public void bindInputPort(final String name, final Iterable<Source> sources)
+        {
+            this.sources = sources;
+        }
+
+        @Override
+        public void bindOutputPort(final String name, final Result result)
+        {
+            // Ignored
+        }
+
+        @Override
+        public PipelineResult execute()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        directory = Benchmarks.newTemporaryDirectory();
+        for (int i = 0; i < fileCount; i++)
+        {
+            files.add(Benchmarks.writeDocument(directory, i + ".xml", 0));
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        Benchmarks.delete(directory);
+    }
+
+    /**
+     * Opens the document the way a parser would, and reads its first byte.
+     */
+    private static int open(final Source source) throws IOException
+    {
+        final InputStream input;
+        if (source instanceof StreamSource && ((StreamSource) source).getInputStream() != null)
+        {
+            input = ((StreamSource) source).getInputStream();
+        }
+        else
+        {
+            input = new URL(source.getSystemId()).openStream();
+        }
+
+        try
+        {
+            return input.read();
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    @Benchmark
+    public void bindInputPortToFiles(final Blackhole blackhole) throws IOException
+    {
+        final RecordingPipeline pipeline = new RecordingPipeline();
+        pipeline.bindInputPortToFiles(IdentityPipelineFactory.SOURCE_PORT, files);
+        for (final Source source : pipeline.sources)
+        {
+            blackhole.consume(open(source));
+        }
+    }
+}
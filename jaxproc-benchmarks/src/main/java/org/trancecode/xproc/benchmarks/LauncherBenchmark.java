@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.trancecode.xproc.api.PipelineFactory;
+import org.trancecode.xproc.cli.JaxprocLauncher;
+
+/**
+ * Measures the cold start of the command-line launcher, each invocation running
+ * in a new JVM.
+ * <p>
+ * The launcher runs either from the benchmark classpath or from its jar
+ * ({@code launcherJar}), the latter being required to use a class data sharing
+ * archive, which only applies to the jar it was created from.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LauncherBenchmark
+{
+    /**
+     * Class name of the {@link PipelineFactory} to benchmark.
+     */
+    @Param("")
+    public String factoryClass;
+
+    /**
+     * Jar of the launcher (e.g. {@code jaxproc-cli/target/jaxproc-cli-*.jar}),
+     * or empty to run the launcher from the benchmark classpath.
+     */
+    @Param("")
+    public String launcherJar;
+
+    /**
+     * Class data sharing archive of {@link #launcherJar}, if any.
+     */
+    @Param("")
+    public String sharedArchiveFile;
+
+    static List<String> getJvmArguments(final String launcherJar, final String sharedArchiveFile)
+    {
+        if (sharedArchiveFile.length() == 0)
+        {
+            return Collections.emptyList();
+        }
+
+        if (launcherJar.length() == 0)
+        {
+            throw new IllegalArgumentException("a shared archive only applies to the launcher jar it was created from");
+        }
+
+        return Collections.singletonList("-XX:SharedArchiveFile=" + sharedArchiveFile);
+    }
+
+    /**
+     * Runs {@link JaxprocLauncher} in a new JVM with the specified arguments
+     * and returns its exit code.
+     */
+    static int runLauncher(final String factoryClass, final String launcherJar, final List<String> jvmArguments,
+            final String... arguments) throws IOException, InterruptedException
+    {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmArguments);
+        command.add("-D" + PipelineFactory.FACTORY_PROPERTY + "="
+                + Benchmarks.getPipelineFactoryClassName(factoryClass));
+        if (launcherJar.length() == 0)
+        {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(JaxprocLauncher.class.getName());
+        }
+        else
+        {
+            command.add("-jar");
+            command.add(launcherJar);
+            // The pipeline factory may only be on the benchmark classpath
+            for (final String path : System.getProperty("java.class.path").split(File.pathSeparator))
+            {
+                command.add("--classpath");
+                command.add(new File(path).toURI().toString());
+            }
+        }
+        command.addAll(Arrays.asList(arguments));
+
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final InputStream output = process.getInputStream();
+        final byte[] buffer = new byte[4096];
+        while (output.read(buffer) >= 0)
+        {
+            // Discard the output
+        }
+
+        return process.waitFor();
+    }
+
+    @Benchmark
+    public int version() throws Exception
+    {
+        final int exitCode = runLauncher(factoryClass, launcherJar, getJvmArguments(launcherJar, sharedArchiveFile),
+                "--version");
+        if (exitCode != 0)
+        {
+            throw new IllegalStateException("launcher exited with code " + exitCode);
+        }
+
+        return exitCode;
+    }
+}
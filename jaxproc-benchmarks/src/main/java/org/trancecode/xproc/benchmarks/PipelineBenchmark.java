@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.trancecode.xproc.api.CompiledPipeline;
+import org.trancecode.xproc.api.Pipeline;
+import org.trancecode.xproc.api.PipelineFactory;
+import org.trancecode.xproc.api.PipelineResult;
+
+/**
+ * Measures the compilation and the execution of a pipeline that copies a
+ * single document of varying size.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PipelineBenchmark
+{
+    /**
+     * Class name of the {@link PipelineFactory} to benchmark.
+     */
+    @Param("")
+    public String factoryClass;
+
+    @Param({ "1", "1024" })
+    public int documentSizeInKilobytes;
+
+    private File directory;
+    private File pipelineFile;
+    private File document;
+    private PipelineFactory factory;
+    private CompiledPipeline compiledPipeline;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        directory = Benchmarks.newTemporaryDirectory();
+        pipelineFile = Benchmarks.writeIdentityPipeline(directory);
+        document = Benchmarks.writeDocument(directory, "document.xml", documentSizeInKilobytes);
+        factory = Benchmarks.newPipelineFactory(factoryClass);
+        compiledPipeline = factory.newCompiledPipeline(new StreamSource(pipelineFile));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public CompiledPipeline compile()
+    {
+        return factory.newCompiledPipeline(new StreamSource(pipelineFile));
+    }
+
+    @Benchmark
+    public PipelineResult execute()
+    {
+        final Pipeline pipeline = compiledPipeline.newPipeline();
+        pipeline.bindInputPortToFile(IdentityPipelineFactory.SOURCE_PORT, document);
+        return pipeline.execute();
+    }
+
+    @Benchmark
+    public PipelineResult executeAndSerialize()
+    {
+        final Pipeline pipeline = compiledPipeline.newPipeline();
+        pipeline.bindInputPortToFile(IdentityPipelineFactory.SOURCE_PORT, document);
+        final PipelineResult result = pipeline.execute();
+        result.readDocument(IdentityPipelineFactory.RESULT_PORT, new StreamResult(Benchmarks.NULL_OUTPUT_STREAM));
+        return result;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.trancecode.xproc.api.Pipeline;
+import org.trancecode.xproc.api.PipelineFactory;
+import org.trancecode.xproc.api.PipelineResult;
+
+/**
+ * Measures the throughput of {@link PipelineResult#readDocuments(String)} for a
+ * sequence of small documents, including their serialization.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadDocumentsBenchmark
+{
+    /**
+     * Class name of the {@link PipelineFactory} to benchmark.
+     */
+    @Param("")
+    public String factoryClass;
+
+    @Param({ "10", "1000" })
+    public int documentCount;
+
+    private File directory;
+    private PipelineResult result;
+    private Transformer serializer;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        directory = Benchmarks.newTemporaryDirectory();
+        final File document = Benchmarks.writeDocument(directory, "document.xml", 1);
+        final File[] documents = new File[documentCount];
+        for (int i = 0; i < documentCount; i++)
+        {
+            documents[i] = document;
+        }
+
+        final PipelineFactory factory = Benchmarks.newPipelineFactory(factoryClass);
+        final Pipeline pipeline = factory.newPipeline(new StreamSource(Benchmarks.writeIdentityPipeline(directory)));
+        pipeline.bindInputPortToFiles(IdentityPipelineFactory.SOURCE_PORT, documents);
+        result = pipeline.execute();
+        serializer = TransformerFactory.newInstance().newTransformer();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public int readDocuments() throws Exception
+    {
+        int count = 0;
+        for (final Source document : result.readDocuments(IdentityPipelineFactory.RESULT_PORT))
+        {
+            serializer.transform(document, new StreamResult(Benchmarks.NULL_OUTPUT_STREAM));
+            count++;
+        }
+
+        return count;
+    }
+}
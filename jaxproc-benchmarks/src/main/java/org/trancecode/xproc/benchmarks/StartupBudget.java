@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.trancecode.xproc.cli.JaxprocLauncher;
+
+/**
+ * Checks that the median cold start time of {@code --version} stays within a
+ * budget, and exits with a non-zero code otherwise. Run as:
+ * 
+ * <pre>
+ * java -cp ... org.trancecode.xproc.benchmarks.StartupBudget [BUDGET_MS [RUNS [LAUNCHER_JAR [CDS_ARCHIVE]]]]
+ * </pre>
+ * 
+ * @see LauncherBenchmark
+ * @author Herve Quiroz
+ */
+public final class StartupBudget
+{
+    public static final long DEFAULT_BUDGET = 1000;
+    public static final int DEFAULT_RUNS = 5;
+
+    private StartupBudget()
+    {
+        // No instantiation
+    }
+
+    /**
+     * Returns the median duration in milliseconds of {@link JaxprocLauncher}
+     * runs with {@code --version}.
+     */
+    public static long measure(final String factoryClass, final String launcherJar, final List<String> jvmArguments,
+            final int runs) throws Exception
+    {
+        final long[] durations = new long[runs];
+        for (int i = 0; i < runs; i++)
+        {
+            final long startTime = System.nanoTime();
+            final int exitCode = LauncherBenchmark.runLauncher(factoryClass, launcherJar, jvmArguments,
+                    "--version");
+            durations[i] = (System.nanoTime() - startTime) / 1000000;
+            if (exitCode != 0)
+            {
+                throw new IllegalStateException("launcher exited with code " + exitCode);
+            }
+        }
+
+        Arrays.sort(durations);
+        return durations[runs / 2];
+    }
+
+    public static void main(final String... args) throws Exception
+    {
+        final long budget = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_BUDGET;
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+        final String launcherJar = args.length > 2 ? args[2] : "";
+        final String sharedArchiveFile = args.length > 3 ? args[3] : "";
+
+        final long duration = measure("", launcherJar, LauncherBenchmark.getJvmArguments(launcherJar,
+                sharedArchiveFile), runs);
+        System.out.println(String.format("launcher startup: %d ms (budget: %d ms)", duration, budget));
+        if (duration > budget)
+        {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Thin client that asks a running {@link JaxprocServer} to execute a pipeline,
+ * so that no pipeline processor has to be loaded by the client JVM.
+ * <p>
+ * The arguments are the same as the ones of {@link JaxprocLauncher} (only
+ * {@code --xpl}, {@code --library}, {@code --input-port},
+ * {@code --output-port}, {@code --option} and {@code --parameter} are
+ * supported), optionally preceded by {@code --port PORT}. The client
+ * authenticates with the token that the server wrote to a file only readable
+ * by its owner, so only the user running the server can submit requests.
+ * <p>
+ * This class deliberately depends on nothing but the JDK to keep the startup
+ * time as low as possible. The startup of the client JVM itself still takes
+ * place for each run.
+ * 
+ * @author Herve Quiroz
+ */
+public final class JaxprocClient
+{
+    public static final int DEFAULT_PORT = 7979;
+    static final String CHARSET = "UTF-8";
+    static final String OK = "OK";
+    static final String ERROR = "ERROR";
+
+    private JaxprocClient()
+    {
+        // No instantiation
+    }
+
+    /**
+     * Returns the file where the server listening on the specified port
+     * writes the token that clients must send with each request. The file is
+     * only readable by its owner.
+     */
+    static File getTokenFile(final int port)
+    {
+        return new File(new File(System.getProperty("user.home"), ".jaxproc"), "server-" + port + ".token");
+    }
+
+    private static String readToken(final int port) throws IOException
+    {
+        final File tokenFile = getTokenFile(port);
+        if (!tokenFile.isFile())
+        {
+            throw new IOException("no server running on port " + port + " (no token file " + tokenFile + ")");
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tokenFile),
+                CHARSET));
+        try
+        {
+            return reader.readLine();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    public static void main(final String... args) throws IOException
+    {
+        int port = DEFAULT_PORT;
+        int firstArgument = 0;
+        if (args.length > 1 && "--port".equals(args[0]))
+        {
+            port = Integer.parseInt(args[1]);
+            firstArgument = 2;
+        }
+
+        final String token = readToken(port);
+        final String response;
+        final Socket socket = new Socket(InetAddress.getByName(null), port);
+        try
+        {
+            final Writer writer = new OutputStreamWriter(socket.getOutputStream(), CHARSET);
+            writer.write(token + "\n");
+            writer.write(new File(".").getAbsoluteFile().toURI() + "\n");
+            for (int i = firstArgument; i < args.length; i++)
+            {
+                writer.write(args[i] + "\n");
+            }
+            writer.write("\n");
+            writer.flush();
+
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+            response = reader.readLine();
+        }
+        finally
+        {
+            socket.close();
+        }
+
+        if (response == null || !response.startsWith(OK))
+        {
+            System.err.println(response == null ? "no response from server" : response);
+            System.exit(1);
+        }
+    }
+}
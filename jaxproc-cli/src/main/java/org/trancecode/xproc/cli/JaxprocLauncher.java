@@ -18,25 +18,34 @@ package org.trancecode.xproc.cli;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.ImmutableBiMap;
-import com.google.common.collect.ImmutableBiMap.Builder;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Resources;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.ServiceLoader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.namespace.QName;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.stream.StreamSource;
 
 import org.trancecode.logging.Logger;
@@ -46,9 +55,17 @@ import org.trancecode.opts.Argument;
 import org.trancecode.opts.Command;
 import org.trancecode.opts.Option;
 import org.trancecode.opts.Options;
+import org.trancecode.xproc.api.CachingUriResolver;
+import org.trancecode.xproc.api.CompiledPipeline;
+import org.trancecode.xproc.api.FileStepCache;
 import org.trancecode.xproc.api.Pipeline;
+import org.trancecode.xproc.api.PipelineBatchRunner;
+import org.trancecode.xproc.api.PipelineBindings;
+import org.trancecode.xproc.api.PipelineDiskCache;
 import org.trancecode.xproc.api.PipelineFactory;
 import org.trancecode.xproc.api.PipelineResult;
+import org.trancecode.xproc.api.ProgressMonitor;
+import org.trancecode.xproc.api.XProcProperties;
 
 /**
  * @author Herve Quiroz
@@ -56,16 +73,11 @@ import org.trancecode.xproc.api.PipelineResult;
 @Command("java -jar jaxproc.jar")
 public final class JaxprocLauncher extends AbstractSimpleLoggingLauncher implements Runnable
 {
-    private static final Logger LOG = Logger.getLogger();
-    private static final BiMap<String, String> PIPELINE_FACTORY_CLASS_ALIASES;
-
-    static
-    {
-        final Builder<String, String> aliases = ImmutableBiMap.builder();
-        aliases.put("tubular", "org.trancecode.xproc.tubular.TubularPipelineFactory");
-        PIPELINE_FACTORY_CLASS_ALIASES = aliases.build();
-        SimpleLoggerManager.setLogFileNamePrefix("jaxproc");
-    }
+    // Created on first use, so that --version does not load the logger
+    private static Logger log;
+    private static final long PROGRESS_INTERVAL = 5;
+    // Step outputs not reused for that many days are deleted
+    private static final long STEP_CACHE_MAXIMUM_AGE = 30;
 
     private final List<URL> classpath = Lists.newArrayList();
     private URI libraryUri;
@@ -74,6 +86,14 @@ public final class JaxprocLauncher extends AbstractSimpleLoggingLauncher impleme
     private final Map<String, URI> inputPorts = Maps.newHashMap();
     private final Map<String, URI> outputPorts = Maps.newHashMap();
     private URI pipelineUri;
+    private String processor;
+    private String batchInputPort;
+    private File batchInputDirectory;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File cacheDirectory;
+    private boolean progress;
+    private File stepCacheDirectory;
+    private ProgressMonitor progressMonitor;
 
     @Option(shortName = "i", longName = "input-port", description = "Bind an input port to a ressource")
     @Argument(label = "NAME=URI", pattern = "^([^=]+)=([^=]+)$")
@@ -93,6 +113,52 @@ public final class JaxprocLauncher extends AbstractSimpleLoggingLauncher impleme
         outputPorts.put(port, resource);
     }
 
+    @Option(shortName = "I", longName = "input-dir", description = "Run the pipeline once for each file of a directory bound to an input port")
+    @Argument(label = "NAME=URI", pattern = "^([^=]+)=([^=]+)$")
+    public void bindInputPortToDirectory(final String port, final URI directory)
+    {
+        Preconditions.checkState(batchInputPort == null, "input directory is set more than once: %s = %s", port,
+                directory);
+        batchInputPort = port;
+        batchInputDirectory = new File(new File(".").toURI().resolve(directory));
+        Preconditions.checkArgument(batchInputDirectory.isDirectory(), "not a directory: %s", batchInputDirectory);
+    }
+
+    @Option(shortName = "j", longName = "threads", description = "Number of worker threads (batch runs, output ports, server requests)")
+    @Argument(label = "N")
+    public void setThreads(final String threads)
+    {
+        this.threads = Integer.parseInt(threads);
+        Preconditions.checkArgument(this.threads > 0, "invalid number of threads: %s", threads);
+    }
+
+    @Option(shortName = "F", longName = "processor", description = "XProc processor to use (class name or alias)")
+    @Argument(label = "NAME")
+    public void setProcessor(final String processor)
+    {
+        this.processor = processor;
+    }
+
+    @Option(shortName = "C", longName = "cache-dir", description = "Keep compiled pipelines in a directory across runs")
+    @Argument(label = "DIR")
+    public void setCacheDirectory(final String cacheDirectory)
+    {
+        this.cacheDirectory = new File(cacheDirectory);
+    }
+
+    @Option(shortName = "N", longName = "incremental", description = "Reuse the outputs of unchanged steps stored in a directory")
+    @Argument(label = "DIR")
+    public void setStepCacheDirectory(final String stepCacheDirectory)
+    {
+        this.stepCacheDirectory = new File(stepCacheDirectory);
+    }
+
+    @Option(shortName = "g", longName = "progress", description = "Log the progress of the pipeline periodically")
+    public void setProgress()
+    {
+        progress = true;
+    }
+
     @Option(shortName = "x", longName = "xpl", description = "XProc pipeline to load and run")
     @Argument(label = "URI")
     public void setPipelineUri(final URI pipelineUri)
@@ -151,7 +217,7 @@ public final class JaxprocLauncher extends AbstractSimpleLoggingLauncher impleme
     {
         System.out.println(getLauncherInformation());
         setupClassLoader();
-        System.out.println(PipelineFactory.newInstance());
+        System.out.println(newPipelineFactory());
         System.out.println("Library URI: " + libraryUri);
     }
 
@@ -160,6 +226,7 @@ public final class JaxprocLauncher extends AbstractSimpleLoggingLauncher impleme
     {
         setupClassLoader();
 
+        final BiMap<String, String> classAliases = ImmutableBiMap.copyOf(PipelineFactory.getClassAliases());
         final Iterable<StringBuilder> factories = Iterables.transform(
                 ServiceLoader.load(PipelineFactory.class, getClassLoader()),
                 new Function<PipelineFactory, StringBuilder>()
@@ -169,7 +236,7 @@ public final class JaxprocLauncher extends AbstractSimpleLoggingLauncher impleme
                     {
                         final StringBuilder result = new StringBuilder();
                         result.append(" ** ");
-                        final String alias = PIPELINE_FACTORY_CLASS_ALIASES.inverse().get(factory.getClass().getName());
+                        final String alias = classAliases.inverse().get(factory.getClass().getName());
                         if (alias != null)
                         {
                             result.append(alias).append(" = ");
@@ -183,11 +250,31 @@ public final class JaxprocLauncher extends AbstractSimpleLoggingLauncher impleme
         System.out.println(Joiner.on("--------------------").join(factories));
     }
 
+    private static synchronized Logger getLog()
+    {
+        if (log == null)
+        {
+            log = Logger.getLogger();
+        }
+
+        return log;
+    }
+
     private static ClassLoader getClassLoader()
     {
         return Thread.currentThread().getContextClassLoader();
     }
 
+    private PipelineFactory newPipelineFactory()
+    {
+        if (processor == null)
+        {
+            return PipelineFactory.newInstance();
+        }
+
+        return PipelineFactory.newInstance(processor, getClassLoader());
+    }
+
     private void setupClassLoader()
     {
         if (classpath.isEmpty())
@@ -195,37 +282,254 @@ public final class JaxprocLauncher extends AbstractSimpleLoggingLauncher impleme
             return;
         }
 
-        LOG.debug("adding URLs to the classpath:\n  {}", Joiner.on("\n  ").join(classpath));
+        getLog().debug("adding URLs to the classpath:\n  {}", Joiner.on("\n  ").join(classpath));
         final ClassLoader mainClassLoader = Thread.currentThread().getContextClassLoader();
         final URL[] urls = classpath.toArray(new URL[0]);
         final ClassLoader combinedClassLoader = new URLClassLoader(urls, mainClassLoader);
         Thread.currentThread().setContextClassLoader(combinedClassLoader);
     }
 
+    private void configurePipeline(final Pipeline pipeline, final PipelineBindings bindings)
+    {
+        pipeline.setBindings(bindings);
+        for (final Entry<String, URI> port : inputPorts.entrySet())
+        {
+            // Resolve relative URIs so that compressed local files are recognized
+            bindInputPort(pipeline, port.getKey(), new File(".").toURI().resolve(port.getValue()));
+        }
+    }
+
+    private void bindInputPort(final Pipeline pipeline, final String port, final URI resource)
+    {
+        if (progressMonitor == null)
+        {
+            pipeline.bindInputPortToResource(port, resource);
+            return;
+        }
+
+        pipeline.bindInputPort(port, progressMonitor.count(port, Pipeline.newSources(Collections.singleton(resource))));
+    }
+
+    private PipelineBatchRunner.Task newBatchTask(final PipelineBindings bindings, final File input)
+    {
+        return new PipelineBatchRunner.Task()
+        {
+            @Override
+            public void bind(final Pipeline pipeline)
+            {
+                getLog().debug("batch input: {}", input);
+                configurePipeline(pipeline, bindings);
+                bindInputPort(pipeline, batchInputPort, input.toURI());
+            }
+
+            @Override
+            public void completed(final PipelineResult result)
+            {
+                // In batch mode output ports are bound to directories
+                for (final Entry<String, URI> port : outputPorts.entrySet())
+                {
+                    final File outputDirectory = new File(new File(".").toURI().resolve(port.getValue()));
+                    OutputPortWriter.write(result, port.getKey(), new File(outputDirectory, input.getName()).toURI());
+                }
+
+                if (progressMonitor != null)
+                {
+                    progressMonitor.runCompleted();
+                }
+            }
+
+            @Override
+            public void failed(final RuntimeException error)
+            {
+                getLog().error("{}: {}", input, error);
+                if (progressMonitor != null)
+                {
+                    progressMonitor.runCompleted();
+                }
+            }
+        };
+    }
+
+    private void runBatch(final CompiledPipeline compiledPipeline, final PipelineBindings bindings)
+    {
+        final File[] inputs = batchInputDirectory.listFiles();
+        Arrays.sort(inputs);
+        getLog().info("running pipeline on files from {} using {} threads", batchInputDirectory, threads);
+
+        final List<File> inputFiles = Lists.newArrayList(Iterables.filter(Arrays.asList(inputs),
+                new Predicate<File>()
+                {
+                    @Override
+                    public boolean apply(final File input)
+                    {
+                        return input.isFile();
+                    }
+                }));
+        if (progressMonitor != null)
+        {
+            progressMonitor.setExpectedRunCount(inputFiles.size());
+        }
+
+        final Iterable<PipelineBatchRunner.Task> tasks = Iterables.transform(inputFiles,
+                new Function<File, PipelineBatchRunner.Task>()
+                {
+                    @Override
+                    public PipelineBatchRunner.Task apply(final File input)
+                    {
+                        return newBatchTask(bindings, input);
+                    }
+                });
+
+        final long startTime = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final PipelineBatchRunner runner = new PipelineBatchRunner(compiledPipeline, executor, threads * 2);
+        try
+        {
+            runner.run(tasks);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        final long count = runner.getCompletedCount() + runner.getFailedCount();
+        final long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        getLog().info("{} files processed in {} ms ({} files/s), {} failures", count, duration,
+                String.format("%.1f", count * 1000.0 / duration), runner.getFailedCount());
+        if (runner.getResetFailureCount() > 0)
+        {
+            getLog().warn("{} pipelines could not be reset and were not reused", runner.getResetFailureCount());
+        }
+        Preconditions.checkState(runner.getFailedCount() == 0, "%s out of %s files failed", runner.getFailedCount(),
+                count);
+    }
+
+    @Option(shortName = "S", longName = "server", description = "Run the pipelines requested by jaxproc clients on a local port", exit = true)
+    @Argument(label = "PORT")
+    public void runServer(final String port)
+    {
+        setupClassLoader();
+
+        final PipelineFactory factory = newPipelineFactory();
+        // Keep the resources in memory, still resolved by the configured resolver if any
+        final Object uriResolver = factory.getProperty(XProcProperties.URI_RESOLVER);
+        if (!(uriResolver instanceof CachingUriResolver))
+        {
+            factory.setProperty(XProcProperties.URI_RESOLVER, new CachingUriResolver((URIResolver) uriResolver,
+                    CachingUriResolver.DEFAULT_MAXIMUM_SIZE, CachingUriResolver.DEFAULT_TIME_TO_LIVE, false));
+        }
+        final List<URI> libraries = Lists.newArrayList();
+        if (libraryUri != null)
+        {
+            libraries.add(new File(".").toURI().resolve(libraryUri));
+        }
+
+        try
+        {
+            new JaxprocServer(factory, libraries, Integer.parseInt(port), threads).serve();
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private CompiledPipeline newCompiledPipeline(final PipelineFactory factory)
+    {
+        if (cacheDirectory == null)
+        {
+            return factory.newCompiledPipeline(new StreamSource(pipelineUri.toString()));
+        }
+
+        final URI currentDirectory = new File(".").toURI();
+        final List<URI> libraries = Lists.newArrayList();
+        if (libraryUri != null)
+        {
+            libraries.add(currentDirectory.resolve(libraryUri));
+        }
+
+        final CompiledPipeline compiledPipeline = new PipelineDiskCache(factory, cacheDirectory).getCompiledPipeline(
+                currentDirectory.resolve(pipelineUri), libraries);
+        if (!(compiledPipeline instanceof Serializable))
+        {
+            getLog().warn("--cache-dir has no effect: {} does not support serialization of compiled pipelines",
+                    factory.getClass().getName());
+        }
+
+        return compiledPipeline;
+    }
+
     @Override
     public void run()
     {
         setupClassLoader();
 
-        final PipelineFactory factory = PipelineFactory.newInstance();
-        final Pipeline pipeline = factory.newPipeline(new StreamSource(pipelineUri.toString()));
-        pipeline.setOptions(options);
-        pipeline.setParameters(parameters);
-        for (final Entry<String, URI> port : inputPorts.entrySet())
+        final PipelineFactory factory = newPipelineFactory();
+        if (stepCacheDirectory != null)
         {
-            pipeline.bindInputPortToResource(port.getKey(), port.getValue());
+            final FileStepCache stepCache = new FileStepCache(stepCacheDirectory);
+            stepCache.pruneOlderThan(STEP_CACHE_MAXIMUM_AGE, TimeUnit.DAYS);
+            factory.setProperty(XProcProperties.STEP_CACHE, stepCache);
         }
 
-        final PipelineResult result = pipeline.execute();
+        final Runnable progressReport = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                getLog().info("progress: {}", progressMonitor.getStatus());
+            }
+        };
+        final ScheduledExecutorService progressReporter;
+        if (progress)
+        {
+            progressReporter = Executors.newSingleThreadScheduledExecutor();
+            progressMonitor = new ProgressMonitor();
+            // Keeps the listeners set by the processor configuration
+            factory.addStepListener(progressMonitor);
+            progressReporter.scheduleAtFixedRate(progressReport, PROGRESS_INTERVAL, PROGRESS_INTERVAL,
+                    TimeUnit.SECONDS);
+        }
+        else
+        {
+            progressReporter = null;
+        }
 
-        for (final Entry<String, URI> port : outputPorts.entrySet())
+        try
         {
-            result.readDocument(port.getKey(), port.getValue());
+            final CompiledPipeline compiledPipeline = newCompiledPipeline(factory);
+            if (progressMonitor != null)
+            {
+                progressMonitor.start();
+            }
+            final PipelineBindings bindings = new PipelineBindings(compiledPipeline).setOptions(options)
+                    .setParameters(parameters);
+            if (batchInputPort != null)
+            {
+                runBatch(compiledPipeline, bindings);
+                return;
+            }
+
+            final Pipeline pipeline = compiledPipeline.newPipeline();
+            configurePipeline(pipeline, bindings);
+            final PipelineResult result = pipeline.execute();
+            new OutputPortWriter(threads).write(result, outputPorts);
+        }
+        finally
+        {
+            if (progressReporter != null)
+            {
+                progressReporter.shutdownNow();
+                progressReport.run();
+            }
         }
     }
 
     public static void main(final String... args) throws Exception
     {
+        // Not in a static initializer, so that loading the class (e.g. from
+        // the benchmarks) does not configure logging
+        SimpleLoggerManager.setLogFileNamePrefix("jaxproc");
         Options.execute(JaxprocLauncher.class, args);
     }
 }
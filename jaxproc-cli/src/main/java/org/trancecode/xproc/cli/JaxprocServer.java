@@ -0,0 +1,363 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.cli;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import org.trancecode.logging.Logger;
+import org.trancecode.xproc.api.Pipeline;
+import org.trancecode.xproc.api.PipelineCache;
+import org.trancecode.xproc.api.PipelineFactory;
+import org.trancecode.xproc.api.PipelineResult;
+
+/**
+ * Keeps a warm JVM with compiled pipelines and runs the pipelines requested by
+ * {@link JaxprocClient} instances on a local port.
+ * <p>
+ * Each request is made of the token written by the server to
+ * {@link JaxprocClient#getTokenFile(int)}, the client working directory URI,
+ * then one argument per line and an empty line. The response is a single line starting with
+ * either {@value JaxprocClient#OK} or {@value JaxprocClient#ERROR}.
+ * 
+ * @author Herve Quiroz
+ */
+final class JaxprocServer
+{
+    private static final Logger LOG = Logger.getLogger();
+
+    private static final int READ_TIMEOUT = 30000;
+    private static final int MAXIMUM_LIBRARY_SETS = 16;
+
+    private final PipelineFactory factory;
+    private final List<URI> libraries;
+    private final int port;
+    private final ExecutorService executor;
+    // One cache per set of libraries, so that a request does not invalidate
+    // the pipelines compiled for other libraries
+    private final Map<Set<URI>, PipelineCache> caches = new LinkedHashMap<Set<URI>, PipelineCache>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Set<URI>, PipelineCache> eldest)
+        {
+            return size() > MAXIMUM_LIBRARY_SETS;
+        }
+    };
+    private byte[] token;
+
+    /**
+     * @param libraries
+     *            the libraries loaded for all the requests
+     */
+    public JaxprocServer(final PipelineFactory factory, final List<URI> libraries, final int port, final int threads)
+    {
+        this.factory = Preconditions.checkNotNull(factory);
+        this.libraries = ImmutableList.copyOf(libraries);
+        this.port = port;
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    private PipelineCache getCache(final Set<URI> libraries)
+    {
+        synchronized (caches)
+        {
+            PipelineCache cache = caches.get(libraries);
+            if (cache == null)
+            {
+                cache = new PipelineCache(factory);
+                for (final URI library : libraries)
+                {
+                    cache.addLibrary(library);
+                }
+                caches.put(ImmutableSet.copyOf(libraries), cache);
+            }
+
+            return cache;
+        }
+    }
+
+    /**
+     * Writes a new random token to a file only readable by the current user.
+     */
+    private void writeTokenFile(final File tokenFile) throws IOException
+    {
+        final File directory = tokenFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("cannot create directory " + directory);
+        }
+        if (!supportsPosixPermissions())
+        {
+            LOG.warn("file permissions cannot be restricted on this platform: the token file is only protected by "
+                    + "the access control of {}", directory);
+        }
+        restrictToOwner(directory);
+
+        final byte[] randomBytes = new byte[20];
+        new SecureRandom().nextBytes(randomBytes);
+        final StringBuilder buffer = new StringBuilder();
+        for (final byte b : randomBytes)
+        {
+            buffer.append(String.format("%02x", b & 0xff));
+        }
+        token = buffer.toString().getBytes(JaxprocClient.CHARSET);
+
+        tokenFile.delete();
+        if (!tokenFile.createNewFile())
+        {
+            throw new IOException("cannot create token file " + tokenFile);
+        }
+        // Restrict the file before writing the token to it
+        restrictToOwner(tokenFile);
+        final OutputStream output = new FileOutputStream(tokenFile);
+        try
+        {
+            output.write(token);
+            output.write('\n');
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    /**
+     * Returns whether the files have POSIX permissions, which Windows file
+     * systems lack.
+     */
+    private static boolean supportsPosixPermissions()
+    {
+        return File.separatorChar == '/';
+    }
+
+    /**
+     * Restricts the permissions of the file to its owner. Without POSIX
+     * permissions, files inherit the access control of the user's home
+     * directory instead.
+     */
+    private static void restrictToOwner(final File file) throws IOException
+    {
+        if (!supportsPosixPermissions())
+        {
+            return;
+        }
+
+        final boolean executable = file.isDirectory();
+        if (!file.setReadable(false, false) || !file.setReadable(true, true) || !file.setWritable(false, false)
+                || !file.setWritable(true, true) || !file.setExecutable(false, false)
+                || (executable && !file.setExecutable(true, true)))
+        {
+            throw new IOException("cannot restrict the permissions of " + file
+                    + " to its owner: the file system may not support POSIX permissions");
+        }
+    }
+
+    public void serve() throws IOException
+    {
+        final File tokenFile = JaxprocClient.getTokenFile(port);
+        // Only accept connections from the local host
+        final ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getByName(null));
+        try
+        {
+            writeTokenFile(tokenFile);
+            LOG.info("listening on {} (token file: {})", serverSocket.getLocalSocketAddress(), tokenFile);
+            while (!Thread.currentThread().isInterrupted())
+            {
+                final Socket socket = serverSocket.accept();
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        handle(socket);
+                    }
+                });
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            serverSocket.close();
+            tokenFile.delete();
+        }
+    }
+
+    private void handle(final Socket socket)
+    {
+        try
+        {
+            // Idle clients must not hold the worker threads
+            socket.setSoTimeout(READ_TIMEOUT);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    JaxprocClient.CHARSET));
+            final String requestToken = reader.readLine();
+            if (requestToken == null
+                    || !MessageDigest.isEqual(token, requestToken.getBytes(JaxprocClient.CHARSET)))
+            {
+                LOG.warn("rejected request with an invalid token from {}", socket.getRemoteSocketAddress());
+                respond(socket, JaxprocClient.ERROR + " invalid token");
+                return;
+            }
+
+            final String directory = reader.readLine();
+            final List<String> arguments = Lists.newArrayList();
+            for (String line = reader.readLine(); line != null && line.length() > 0; line = reader.readLine())
+            {
+                arguments.add(line);
+            }
+
+            String response;
+            try
+            {
+                Preconditions.checkArgument(directory != null, "empty request");
+                run(URI.create(directory), arguments);
+                response = JaxprocClient.OK;
+            }
+            catch (final RuntimeException e)
+            {
+                LOG.error("request {} failed: {}", arguments, e);
+                response = JaxprocClient.ERROR + " " + String.valueOf(e.getMessage()).replace('\n', ' ');
+            }
+
+            respond(socket, response);
+        }
+        catch (final IOException e)
+        {
+            LOG.warn("cannot handle request: {}", e);
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (final IOException e)
+            {
+                LOG.warn("cannot close socket: {}", e);
+            }
+        }
+    }
+
+    private static void respond(final Socket socket, final String response) throws IOException
+    {
+        final Writer writer = new OutputStreamWriter(socket.getOutputStream(), JaxprocClient.CHARSET);
+        writer.write(response + "\n");
+        writer.flush();
+    }
+
+    private static String[] split(final String binding)
+    {
+        final String[] fields = binding.split("=", 2);
+        Preconditions.checkArgument(fields.length == 2, "expected NAME=VALUE: %s", binding);
+        return fields;
+    }
+
+    private void run(final URI baseUri, final List<String> arguments)
+    {
+        URI pipelineUri = null;
+        final Set<URI> requestLibraries = Sets.newLinkedHashSet(libraries);
+        final Map<QName, Object> options = Maps.newHashMap();
+        final Map<QName, Object> parameters = Maps.newHashMap();
+        final Map<String, URI> inputPorts = Maps.newHashMap();
+        final Map<String, URI> outputPorts = Maps.newHashMap();
+
+        for (final Iterator<String> iterator = arguments.iterator(); iterator.hasNext();)
+        {
+            final String argument = iterator.next();
+            Preconditions.checkArgument(iterator.hasNext(), "missing value for argument: %s", argument);
+            final String value = iterator.next();
+            if (argument.equals("-x") || argument.equals("--xpl"))
+            {
+                pipelineUri = baseUri.resolve(value);
+            }
+            else if (argument.equals("-l") || argument.equals("--library"))
+            {
+                requestLibraries.add(baseUri.resolve(value));
+            }
+            else if (argument.equals("-i") || argument.equals("--input-port"))
+            {
+                inputPorts.put(split(value)[0], baseUri.resolve(split(value)[1]));
+            }
+            else if (argument.equals("-o") || argument.equals("--output-port"))
+            {
+                outputPorts.put(split(value)[0], baseUri.resolve(split(value)[1]));
+            }
+            else if (argument.equals("-O") || argument.equals("--option"))
+            {
+                options.put(QName.valueOf(split(value)[0]), split(value)[1]);
+            }
+            else if (argument.equals("-P") || argument.equals("--parameter"))
+            {
+                parameters.put(QName.valueOf(split(value)[0]), split(value)[1]);
+            }
+            else
+            {
+                throw new IllegalArgumentException("unsupported argument: " + argument);
+            }
+        }
+
+        Preconditions.checkArgument(pipelineUri != null, "no pipeline specified");
+        LOG.debug("running {}", pipelineUri);
+        final PipelineCache cache = getCache(requestLibraries);
+        final Pipeline pipeline = cache.newPipeline(new StreamSource(pipelineUri.toString()));
+        pipeline.setOptions(options);
+        pipeline.setParameters(parameters);
+        for (final Entry<String, URI> port : inputPorts.entrySet())
+        {
+            pipeline.bindInputPortToResource(port.getKey(), port.getValue());
+        }
+
+        final PipelineResult result = pipeline.execute();
+
+        for (final Entry<String, URI> port : outputPorts.entrySet())
+        {
+            OutputPortWriter.write(result, port.getKey(), port.getValue());
+        }
+        LOG.debug("{}", cache);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 Herve Quiroz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.trancecode.xproc.cli;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.trancecode.logging.Logger;
+import org.trancecode.xproc.api.PipelineException;
+import org.trancecode.xproc.api.PipelineResult;
+
+/**
+ * Writes the documents of several output ports in parallel.
+ * <p>
+ * Local files are written through a large buffer, and compressed with gzip when
+ * their name ends with {@code .gz}. All the documents of the port are written
+ * when the file name ends with {@value #ZIP_SUFFIX}, one entry per document,
+ * the documents being serialized in parallel. Other URIs are left to the
+ * pipeline implementation.
+ * 
+ * @author Herve Quiroz
+ */
+final class OutputPortWriter
+{
+    public static final String ZIP_SUFFIX = ".zip";
+
+    private static final Logger LOG = Logger.getLogger();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final File CURRENT_DIRECTORY = new File(".").getAbsoluteFile();
+
+    private final int threads;
+
+    public OutputPortWriter(final int threads)
+    {
+        this.threads = threads;
+    }
+
+    public static void write(final PipelineResult result, final String port, final URI resource)
+    {
+        write(result, port, resource, null);
+    }
+
+    /**
+     * @param documentExecutor
+     *            serializes the documents of archives, or {@code null} to
+     *            serialize them sequentially
+     */
+    private static void write(final PipelineResult result, final String port, final URI resource,
+            final Executor documentExecutor)
+    {
+        final URI absoluteResource = CURRENT_DIRECTORY.toURI().resolve(resource);
+        if (!"file".equals(absoluteResource.getScheme()))
+        {
+            result.readDocument(port, resource);
+            return;
+        }
+
+        final File file = new File(absoluteResource);
+        LOG.debug("writing port {} to {}", port, file);
+        if (file.getParentFile() != null)
+        {
+            file.getParentFile().mkdirs();
+        }
+
+        if (file.getName().endsWith(ZIP_SUFFIX))
+        {
+            if (documentExecutor == null)
+            {
+                result.readDocuments(port, file);
+            }
+            else
+            {
+                result.readDocuments(port, file, documentExecutor);
+            }
+        }
+        else
+        {
+            result.readDocument(port, file, BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Writes all the ports and returns once they are all written.
+     */
+    public void write(final PipelineResult result, final Map<String, URI> ports)
+    {
+        if (threads <= 1)
+        {
+            for (final Entry<String, URI> port : ports.entrySet())
+            {
+                write(result, port.getKey(), port.getValue());
+            }
+            return;
+        }
+
+        // Not shared with the ports, whose tasks wait for the documents
+        final ExecutorService documentExecutor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            write(result, ports, documentExecutor);
+        }
+        finally
+        {
+            documentExecutor.shutdownNow();
+        }
+    }
+
+    private void write(final PipelineResult result, final Map<String, URI> ports, final Executor documentExecutor)
+    {
+        if (ports.size() <= 1)
+        {
+            for (final Entry<String, URI> port : ports.entrySet())
+            {
+                write(result, port.getKey(), port.getValue(), documentExecutor);
+            }
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, ports.size()));
+        try
+        {
+            final List<Future<Void>> writes = Lists.newArrayList();
+            for (final Entry<String, URI> port : ports.entrySet())
+            {
+                writes.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        write(result, port.getKey(), port.getValue(), documentExecutor);
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> write : writes)
+            {
+                write.get();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineException(e, "interrupted while writing output ports");
+        }
+        catch (final ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new PipelineException(e.getCause(), "cannot write output ports");
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}